@@ -0,0 +1,32 @@
+package com.diffbot.ml;
+
+/**
+ * Timing shared by the main-method benchmarks of this package, eg CountingMapBenchmark.
+ */
+final class Benchmarks {
+    // Sums the results of the runs so that the JIT can't optimize them away
+    private static volatile double sink;
+
+    private Benchmarks() {}
+
+    interface Run {
+        /**
+         * Returns a result that depends on all the work of the run.
+         */
+        double run();
+    }
+
+    /**
+     * Returns the best time of runs runs after a warm-up run, in nanoseconds per operation.
+     */
+    static double time(Run run, int runs, long operations) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i <= runs; i++) {
+            long start = System.nanoTime();
+            sink += run.run();
+            long nanos = System.nanoTime() - start;
+            best = i == 0 ? best : Math.min(best, nanos);
+        }
+        return best / (double) operations;
+    }
+}
@@ -0,0 +1,66 @@
+package com.diffbot.ml;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Reads and writes primitive arrays through Data streams in chunks, for the binary formats of
+ * TrainingCheckpoint and SimilarityIndex.
+ */
+final class BinaryArrays {
+    private static final int CHUNK_VALUES = 1 << 14;
+
+    private BinaryArrays() {}
+
+    /**
+     * Writes the values in chunks, which is much faster than one float at a time through the
+     * checksum.
+     */
+    static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+        byte[] chunk = new byte[CHUNK_VALUES * Float.BYTES];
+        FloatBuffer floats = ByteBuffer.wrap(chunk).asFloatBuffer();
+        for (int i = 0; i < values.length; i += CHUNK_VALUES) {
+            int count = Math.min(CHUNK_VALUES, values.length - i);
+            floats.clear();
+            floats.put(values, i, count);
+            out.write(chunk, 0, count * Float.BYTES);
+        }
+    }
+
+    static void readFloats(DataInputStream in, float[] values) throws IOException {
+        byte[] chunk = new byte[CHUNK_VALUES * Float.BYTES];
+        FloatBuffer floats = ByteBuffer.wrap(chunk).asFloatBuffer();
+        for (int i = 0; i < values.length; i += CHUNK_VALUES) {
+            int count = Math.min(CHUNK_VALUES, values.length - i);
+            in.readFully(chunk, 0, count * Float.BYTES);
+            floats.clear();
+            floats.get(values, i, count);
+        }
+    }
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        byte[] chunk = new byte[CHUNK_VALUES * Integer.BYTES];
+        IntBuffer ints = ByteBuffer.wrap(chunk).asIntBuffer();
+        for (int i = 0; i < values.length; i += CHUNK_VALUES) {
+            int count = Math.min(CHUNK_VALUES, values.length - i);
+            ints.clear();
+            ints.put(values, i, count);
+            out.write(chunk, 0, count * Integer.BYTES);
+        }
+    }
+
+    static void readInts(DataInputStream in, int[] values) throws IOException {
+        byte[] chunk = new byte[CHUNK_VALUES * Integer.BYTES];
+        IntBuffer ints = ByteBuffer.wrap(chunk).asIntBuffer();
+        for (int i = 0; i < values.length; i += CHUNK_VALUES) {
+            int count = Math.min(CHUNK_VALUES, values.length - i);
+            in.readFully(chunk, 0, count * Integer.BYTES);
+            ints.clear();
+            ints.get(values, i, count);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.diffbot.ml;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the boxed maps PCRA used to count path statistics and accumulate pair resources with
+ * LongIntHashMap and LongFloatHashMap, on the access pattern of a 2-hop traversal: skewed
+ * increments over a few hundred relation paths, and resource added to a handful of paths for each
+ * of the pairs reached from a head.
+ *
+ * Usage: CountingMapBenchmark [operations]
+ */
+public class CountingMapBenchmark {
+    private static final int RELATION_COUNT = 18;
+    private static final int PAIRS_PER_HEAD = 200;
+    private static final int RUNS = 5;
+
+    private static long[] paths(int operations, Random random) {
+        long[] paths = new long[operations];
+        for (int i = 0; i < operations; i++) {
+            // Skew towards low relation ids, like the relations of a real graph
+            int first = (int) (RELATION_COUNT * Math.pow(random.nextDouble(), 2));
+            int second = (int) (RELATION_COUNT * Math.pow(random.nextDouble(), 2));
+            paths[i] = RelationPaths.append(RelationPaths.of(first), second);
+        }
+        return paths;
+    }
+
+    private static int[] pairs(int operations, Random random) {
+        int[] pairs = new int[operations];
+        for (int i = 0; i < operations; i++) {
+            pairs[i] = random.nextInt(PAIRS_PER_HEAD);
+        }
+        return pairs;
+    }
+
+    public static void main(String[] args) {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        Random random = new Random(42);
+        long[] paths = paths(operations, random);
+        int[] pairs = pairs(operations, random);
+
+        System.out.println("pathCounts (ns/increment)");
+        System.out.println(String.format("\tHashMap putIfAbsent+computeIfPresent: %.1f", Benchmarks.time(() -> {
+            Map<Long, Integer> counts = new HashMap<>();
+            for (long path : paths) {
+                counts.putIfAbsent(path, 0);
+                counts.computeIfPresent(path, (k, v) -> v + 1);
+            }
+            return counts.size();
+        }, RUNS, operations)));
+        System.out.println(String.format("\tHashMap merge: %.1f", Benchmarks.time(() -> {
+            Map<Long, Integer> counts = new HashMap<>();
+            for (long path : paths) {
+                counts.merge(path, 1, Integer::sum);
+            }
+            return counts.size();
+        }, RUNS, operations)));
+        System.out.println(String.format("\tLongIntHashMap addTo: %.1f", Benchmarks.time(() -> {
+            LongIntHashMap counts = new LongIntHashMap();
+            for (long path : paths) {
+                counts.addTo(path, 1);
+            }
+            return counts.size();
+        }, RUNS, operations)));
+
+        System.out.println("pair resources (ns/add, " + PAIRS_PER_HEAD + " pairs per head)");
+        System.out.println(String.format("\tnested HashMap computeIfAbsent+merge: %.1f", Benchmarks.time(() -> {
+            long size = 0;
+            Map<Long, Map<Long, Float>> resources = new HashMap<>();
+            for (int i = 0; i < operations; i++) {
+                if (i % (16 * PAIRS_PER_HEAD) == 0) {
+                    size += resources.size();
+                    resources = new HashMap<>();
+                }
+                resources.computeIfAbsent(KGGraph.pairKey(i / (16 * PAIRS_PER_HEAD), pairs[i]),
+                        k -> new HashMap<>()).merge(paths[i], 0.5f, Float::sum);
+            }
+            return size;
+        }, RUNS, operations)));
+        System.out.println(String.format("\tLongFloatHashMap[] by pair index: %.1f", Benchmarks.time(() -> {
+            long size = 0;
+            LongFloatHashMap[] resources = new LongFloatHashMap[PAIRS_PER_HEAD];
+            for (int i = 0; i < operations; i++) {
+                if (i % (16 * PAIRS_PER_HEAD) == 0) {
+                    for (LongFloatHashMap pairResources : resources) {
+                        size += pairResources == null ? 0 : 1;
+                    }
+                    resources = new LongFloatHashMap[PAIRS_PER_HEAD];
+                }
+                if (resources[pairs[i]] == null) {
+                    resources[pairs[i]] = new LongFloatHashMap();
+                }
+                resources[pairs[i]].addTo(paths[i], 0.5f);
+            }
+            return size;
+        }, RUNS, operations)));
+    }
+}
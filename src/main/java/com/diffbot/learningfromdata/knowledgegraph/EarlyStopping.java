@@ -0,0 +1,143 @@
+package com.diffbot.ml;
+
+import com.esotericsoftware.minlog.Log;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Stops training once the validation MRR plateaus, and keeps the embeddings of the best validation.
+ *
+ * Each validation runs on a background thread on a snapshot of the embeddings, overlapping the
+ * training epochs until the next validation, which waits for its result before deciding whether to
+ * stop. So the decision is always made at the same epochs, and seeded runs stay deterministic.
+ */
+final class EarlyStopping {
+    /**
+     * The smallest increase of the MRR that counts as an improvement.
+     */
+    private static final double MIN_IMPROVEMENT = 1e-3;
+
+    interface Validator {
+        Metrics validate(EmbeddingTable entityVec, EmbeddingTable relationVec);
+    }
+
+    static final class Metrics {
+        final double mrr;
+        final double hitsAt10;
+
+        Metrics(double mrr, double hitsAt10) {
+            this.mrr = mrr;
+            this.hitsAt10 = hitsAt10;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("mrr=%.4f, hitsAt10=%.4f", mrr, hitsAt10);
+        }
+    }
+
+    private final int patience;
+    private final Validator validator;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "PTransEAddTrain-validation");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // the validation being run, if any
+    private Future<Metrics> pending = null;
+    private int pendingEpoch;
+    private EmbeddingTable pendingEntityVec;
+    private EmbeddingTable pendingRelationVec;
+
+    private Metrics best = null;
+    private int bestEpoch;
+    private EmbeddingTable bestEntityVec;
+    private EmbeddingTable bestRelationVec;
+    private int validationsSinceBest = 0;
+
+    EarlyStopping(int patience, Validator validator) {
+        this.patience = patience;
+        this.validator = validator;
+    }
+
+    /**
+     * Judges the previous validation and, unless it is time to stop, starts validating the
+     * embeddings after epoch. Returns true if training should stop.
+     */
+    boolean validate(int epoch, EmbeddingTable entityVec, EmbeddingTable relationVec) {
+        judgePending();
+        if (validationsSinceBest >= patience) {
+            Log.info("EarlyStopping.validate", "Stopping after epoch " + epoch + ", no improvement in " +
+                    validationsSinceBest + " validations since epoch " + bestEpoch);
+            return true;
+        }
+        pendingEpoch = epoch;
+        pendingEntityVec = entityVec.copy();
+        pendingRelationVec = relationVec.copy();
+        EmbeddingTable entitySnapshot = pendingEntityVec;
+        EmbeddingTable relationSnapshot = pendingRelationVec;
+        pending = executor.submit(() -> validator.validate(entitySnapshot, relationSnapshot));
+        return false;
+    }
+
+    /**
+     * Judges the last validation and stops the background thread.
+     */
+    void finish() {
+        judgePending();
+        executor.shutdown();
+    }
+
+    private void judgePending() {
+        if (pending == null) {
+            return;
+        }
+        Metrics metrics;
+        try {
+            metrics = pending.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Validation failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while validating", e);
+        } finally {
+            pending = null;
+        }
+
+        Log.info("EarlyStopping.validate", "epoch " + pendingEpoch + ": " + metrics);
+        if (best == null || metrics.mrr > best.mrr + MIN_IMPROVEMENT) {
+            best = metrics;
+            bestEpoch = pendingEpoch;
+            bestEntityVec = pendingEntityVec;
+            bestRelationVec = pendingRelationVec;
+            validationsSinceBest = 0;
+        } else {
+            validationsSinceBest++;
+        }
+        pendingEntityVec = null;
+        pendingRelationVec = null;
+    }
+
+    /**
+     * The metrics of the best validation, or null if there was none.
+     */
+    Metrics best() {
+        return best;
+    }
+
+    int bestEpoch() {
+        return bestEpoch;
+    }
+
+    EmbeddingTable bestEntityVec() {
+        return bestEntityVec;
+    }
+
+    EmbeddingTable bestRelationVec() {
+        return bestRelationVec;
+    }
+}
@@ -0,0 +1,83 @@
+package com.diffbot.ml;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A matrix of embeddings, one row per entity or relation, stored row-major in a single float[] so
+ * that rows are contiguous and the GC sees one object instead of one per row.
+ *
+ * Row i occupies values[offset(i)] to values[offset(i) + dimension - 1]. Hot loops index values
+ * directly from offset(i) rather than calling get for each element.
+ *
+ * There are no row objects to lock on, so rows share LOCK_STRIPES lock objects instead. A thread
+ * that holds more than one stripe must acquire them in increasing stripe order.
+ */
+final class EmbeddingTable {
+    private static final int LOCK_STRIPES = 1 << 12;
+
+    final int rowCount;
+    final int dimension;
+    final float[] values;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    EmbeddingTable(int rowCount, int dimension) {
+        Preconditions.checkArgument((long) rowCount * dimension <= Integer.MAX_VALUE,
+                "Embedding table too large: " + rowCount + "x" + dimension);
+        this.rowCount = rowCount;
+        this.dimension = dimension;
+        values = new float[rowCount * dimension];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    int offset(int row) {
+        return row * dimension;
+    }
+
+    float get(int row, int j) {
+        return values[row * dimension + j];
+    }
+
+    void set(int row, int j, float value) {
+        values[row * dimension + j] = value;
+    }
+
+    static int stripe(int row) {
+        return row & (LOCK_STRIPES - 1);
+    }
+
+    Object stripeLock(int stripe) {
+        return locks[stripe];
+    }
+
+    EmbeddingTable copy() {
+        EmbeddingTable copy = new EmbeddingTable(rowCount, dimension);
+        System.arraycopy(values, 0, copy.values, 0, values.length);
+        return copy;
+    }
+
+    void copyRow(int row, EmbeddingTable to) {
+        System.arraycopy(values, offset(row), to.values, to.offset(row), dimension);
+    }
+
+    double l2Norm(int row) {
+        double len = 0;
+        for (int i = offset(row), end = i + dimension; i < end; i++) {
+            len += values[i] * values[i];
+        }
+        return Math.sqrt(len);
+    }
+
+    /**
+     * Scales the row down to unit length if it is longer.
+     */
+    void normalizeL2(int row) {
+        double l = l2Norm(row);
+        if (l > 1) {
+            for (int i = offset(row), end = i + dimension; i < end; i++) {
+                values[i] /= l;
+            }
+        }
+    }
+}
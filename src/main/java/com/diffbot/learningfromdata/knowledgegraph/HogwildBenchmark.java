@@ -0,0 +1,123 @@
+package com.diffbot.ml;
+
+import com.esotericsoftware.minlog.Log;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the locked and the Hogwild training modes of PTransEAddTrain on a synthetic graph with
+ * a planted TransE structure: entities and relations get random latent vectors, and the tail of
+ * each triple is the entity closest to head + relation. A tenth of the triples is held out to
+ * measure hit@10, the fraction of held out triples whose tail ranks in the top 10 of all entities.
+ *
+ * Usage: HogwildBenchmark [threads] [epochs] [sgd|adagrad|adam]
+ */
+public class HogwildBenchmark {
+    private static final int ENTITY_COUNT = 2_000;
+    private static final int RELATION_COUNT = 8;
+    private static final int RELATIONS_PER_ENTITY = 3;
+    private static final int LATENT_DIMENSIONS = 10;
+    private static final int HITS_AT = 10;
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[LATENT_DIMENSIONS];
+        for (int i = 0; i < LATENT_DIMENSIONS; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+
+    /**
+     * Returns triples as {head, relation, tail}.
+     */
+    private static List<int[]> syntheticTriples(Random random) {
+        float[][] entities = new float[ENTITY_COUNT][];
+        for (int i = 0; i < ENTITY_COUNT; i++) {
+            entities[i] = randomVector(random);
+        }
+        float[][] relations = new float[RELATION_COUNT][];
+        for (int i = 0; i < RELATION_COUNT; i++) {
+            relations[i] = randomVector(random);
+        }
+
+        List<int[]> triples = new ArrayList<>();
+        for (int headId = 0; headId < ENTITY_COUNT; headId++) {
+            for (int k = 0; k < RELATIONS_PER_ENTITY; k++) {
+                int relationId = random.nextInt(RELATION_COUNT);
+                int tailId = -1;
+                double minDistance = Double.MAX_VALUE;
+                for (int i = 0; i < ENTITY_COUNT; i++) {
+                    double distance = 0;
+                    for (int j = 0; j < LATENT_DIMENSIONS; j++) {
+                        distance += Math.abs(entities[headId][j] + relations[relationId][j] - entities[i][j]);
+                    }
+                    if (i != headId && distance < minDistance) {
+                        tailId = i;
+                        minDistance = distance;
+                    }
+                }
+                triples.add(new int[] {headId, relationId, tailId});
+            }
+        }
+        Collections.shuffle(triples, random);
+        return triples;
+    }
+
+    private static double hitsAt10(PTransEAddTrain trainer, List<int[]> testTriples) {
+        int hits = 0;
+        for (int[] triple : testTriples) {
+            double error = trainer.evalTriple(triple[0], triple[2], triple[1]);
+            int rank = 0;
+            for (int i = 0; i < ENTITY_COUNT && rank < HITS_AT; i++) {
+                if (i != triple[2] && trainer.evalTriple(triple[0], i, triple[1]) < error) {
+                    rank++;
+                }
+            }
+            hits += rank < HITS_AT ? 1 : 0;
+        }
+        return hits / (double) testTriples.size();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int epochs = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        String optimizer = args.length > 2 ? args[2] : Optimizer.SGD;
+        Log.set(Log.LEVEL_WARN);
+        List<int[]> triples = syntheticTriples(new Random(42));
+        List<int[]> testTriples = triples.subList(0, triples.size() / 10);
+        List<int[]> trainTriples = triples.subList(triples.size() / 10, triples.size());
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        System.out.println("mode\toptimizer\tthreads\tepochs\ttriplesPerSecond\thitsAt10");
+        for (boolean hogwild : new boolean[] {false, true}) {
+            PTransEAddTrain.Options options = new PTransEAddTrain.Options();
+            options.hogwild = hogwild;
+            options.epochs = epochs;
+            options.checkpointEvery = 0;
+            options.optimizer = optimizer;
+            PTransEAddTrain trainer = new PTransEAddTrain(options);
+            for (int i = 0; i < ENTITY_COUNT; i++) {
+                trainer.addEntity("E" + i, i);
+            }
+            for (int i = 0; i < RELATION_COUNT; i++) {
+                trainer.addRelation();
+            }
+            for (int[] triple : trainTriples) {
+                trainer.addLabel(triple[0], triple[2], triple[1], Collections.emptyList());
+            }
+            trainer.initialize();
+
+            // learn() runs its parallel streams in the pool it is submitted to
+            long start = System.nanoTime();
+            pool.submit(trainer::learn).get();
+            long nanos = System.nanoTime() - start;
+
+            // learn() samples trainTriples.size() triples per epoch (rounded down to whole batches)
+            double triplesPerSecond = epochs * (double) trainTriples.size() / (nanos / 1e9);
+            System.out.println(String.format("%s\t%s\t%d\t%d\t%.0f\t%.3f",
+                    hogwild ? "hogwild" : "locked", optimizer, threads, epochs, triplesPerSecond, hitsAt10(trainer, testTriples)));
+        }
+        pool.shutdown();
+    }
+}
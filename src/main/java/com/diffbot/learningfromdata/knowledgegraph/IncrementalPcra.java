@@ -0,0 +1,292 @@
+package com.diffbot.ml;
+
+import com.diffbot.toolbox.FileTools;
+import com.esotericsoftware.minlog.Log;
+import com.google.common.base.Splitter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Incremental PCRA, run with `Pcra --incremental delta.txt` after train.txt changed.
+ *
+ * The delta file lists the triples added to and removed from train.txt since the previous run,
+ * one per line as `+ e1 e2 rel` or `- e1 e2 rel`, and train.txt must already include them.
+ *
+ * The relation paths of a head only depend on the edges of the entities within hops - 1 hops of
+ * it, so only the heads that close to an entity of a changed triple, in the graph before or after
+ * the change, are recomputed. Their old contribution to the persisted path_counts is subtracted
+ * and their new one added, and path2, train_pra and test_pra are patched by copying the records of
+ * all other heads from the previous .bin files. The result matches a full run on the new train.txt,
+ * with train_pra and test_pra grouped by head as in the streaming mode.
+ *
+ * Requires the binary outputs of a previous run with the same --hops and --max-frontier, and ids
+ * in entity2id.txt and relation2id.txt that haven't changed (new entities may be appended).
+ */
+class IncrementalPcra {
+    private static final Splitter WHITESPACE_SPLITTER = Splitter.onPattern("\\s+").trimResults().omitEmptyStrings();
+
+    private final Pcra.Options options;
+    private final KGGraph graph;
+    final int relationCount;
+
+    IncrementalPcra(Pcra.Options options) throws IOException {
+        if (!options.binaryOutput) {
+            throw new IllegalArgumentException("--incremental needs --output binary or both to " +
+                    "persist the outputs it patches");
+        }
+        for (File file : Arrays.asList(Pcra.PATH2_BINARY_FILE, Pcra.PATH_COUNTS_BINARY_FILE,
+                Pcra.Mode.TRAIN.getBinaryPathResourceFile(), Pcra.Mode.TEST.getBinaryPathResourceFile())) {
+            if (!file.exists()) {
+                throw new IllegalStateException("Missing " + file + " from a previous run of Pcra");
+            }
+        }
+        this.options = options;
+
+        Log.info("PCRA", "Loading training relations...");
+        this.graph = KGGraph.load();
+        this.relationCount = graph.relationCount;
+    }
+
+    /**
+     * Recomputes the heads affected by the delta, counting their new path statistics into
+     * `localStatistics`, and patches path2, train_pra and test_pra.
+     *
+     * @return the persisted path statistics without the old contributions of the affected heads
+     */
+    Pcra.PathStatistics run(ForkJoinPool pool, ThreadLocal<Pcra.PathStatistics> localStatistics,
+            Set<Long> reliablePaths, Map<String, Long> stageTimes) throws Exception {
+        long startMs = System.currentTimeMillis();
+        List<int[]> addedTriples = new ArrayList<>();
+        List<int[]> removedTriples = new ArrayList<>();
+        readDelta(addedTriples, removedTriples);
+        KGGraph oldGraph = graph.revert(addedTriples, removedTriples);
+
+        int[] touchedEntities = IntStream.concat(
+                addedTriples.stream().flatMapToInt(triple -> IntStream.of(triple[0], triple[1])),
+                removedTriples.stream().flatMapToInt(triple -> IntStream.of(triple[0], triple[1])))
+                .distinct().toArray();
+        boolean[] affected = new boolean[graph.entityCount];
+        markNeighbourhood(graph, touchedEntities, options.hops - 1, affected);
+        markNeighbourhood(oldGraph, touchedEntities, options.hops - 1, affected);
+        int[] affectedHeads = IntStream.range(0, graph.entityCount).filter(i -> affected[i]).toArray();
+        stageTimes.put("delta", System.currentTimeMillis() - startMs);
+        Log.info("PCRA", String.format("%d added and %d removed triples affect %d of %d heads.",
+                addedTriples.size(), removedTriples.size(), affectedHeads.length, graph.entityCount));
+
+        startMs = System.currentTimeMillis();
+        Pcra.PathStatistics statistics = readCounts();
+        statistics.subtractCounts(countStatistics(oldGraph, affectedHeads, pool));
+        oldGraph = null;
+
+        // map of headId -> (map of `headId tailId` -> map of (relation path -> normalized resource))
+        Map<Integer, Map<Long, Map<Long, Float>>> headPathResources = new ConcurrentHashMap<>();
+        pool.submit(() -> Arrays.stream(affectedHeads).parallel().forEach(headId -> {
+            if (!graph.hasEdges(headId)) {
+                return;
+            }
+            Map<Long, Map<Long, Float>> reliablePathResources = new TreeMap<>();
+            Pcra.allocateResources(graph, headId, options.hops, options.maxFrontier,
+                    localStatistics.get()).forEach((pairKey, resources) ->
+                            reliablePathResources.put(pairKey, Pcra.getReliablePaths(resources)));
+            headPathResources.put(headId, reliablePathResources);
+        })).get();
+        stageTimes.put("recompute", System.currentTimeMillis() - startMs);
+
+        startMs = System.currentTimeMillis();
+        patch(Pcra.PATH2_FILE, Pcra.PATH2_BINARY_FILE, null, affected, headPathResources,
+                reliablePaths);
+        patch(Pcra.Mode.TRAIN.getPathResourceFile(), Pcra.Mode.TRAIN.getBinaryPathResourceFile(),
+                Pcra.TripleIndex.load(Pcra.Mode.TRAIN, graph), affected, headPathResources,
+                reliablePaths);
+        patch(Pcra.Mode.TEST.getPathResourceFile(), Pcra.Mode.TEST.getBinaryPathResourceFile(),
+                Pcra.TripleIndex.load(Pcra.Mode.TEST, graph), affected, headPathResources,
+                reliablePaths);
+        stageTimes.put("patch", System.currentTimeMillis() - startMs);
+        return statistics;
+    }
+
+    private void readDelta(List<int[]> addedTriples, List<int[]> removedTriples) throws IOException {
+        try (BufferedReader br = FileTools.bufferedReader(options.deltaFile)) {
+            for (String line = br.readLine(); line != null; line = br.readLine()) {
+                List<String> split = WHITESPACE_SPLITTER.splitToList(line);
+                if (split.isEmpty()) {
+                    continue;
+                }
+                Integer headId = graph.entityToId.get(split.get(1));
+                Integer tailId = graph.entityToId.get(split.get(2));
+                Integer relationId = graph.relationToId.get(split.get(3));
+                if (headId == null || tailId == null || relationId == null) {
+                    Log.warn("PCRA", "Skipping delta triple with unknown ids: " + line);
+                    continue;
+                }
+
+                int[] triple = {headId, tailId, relationId};
+                switch (split.get(0)) {
+                    case "+":
+                        addedTriples.add(triple);
+                        break;
+                    case "-":
+                        removedTriples.add(triple);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Expected + or - at the start of " +
+                                "delta line: " + line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the entities within `depth` hops of the sources.
+     */
+    private static void markNeighbourhood(KGGraph graph, int[] sources, int depth, boolean[] marked) {
+        boolean[] visited = new boolean[graph.entityCount];
+        int[] queue = new int[graph.entityCount];
+        int queueEnd = 0;
+        for (int entityId : sources) {
+            if (!visited[entityId]) {
+                visited[entityId] = true;
+                queue[queueEnd++] = entityId;
+            }
+        }
+
+        // Edges come in both directions, so following the edges of an entity finds every
+        // entity whose paths go through it
+        int position = 0;
+        for (int hop = 0; hop < depth; hop++) {
+            int hopEnd = queueEnd;
+            for (; position < hopEnd; position++) {
+                int end = graph.edgeEnd(queue[position]);
+                for (int edge = graph.edgeStart(queue[position]); edge < end; edge++) {
+                    int tailId = graph.edgeTail(edge);
+                    if (!visited[tailId]) {
+                        visited[tailId] = true;
+                        queue[queueEnd++] = tailId;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < queueEnd; i++) {
+            marked[queue[i]] = true;
+        }
+    }
+
+    private static Pcra.PathStatistics readCounts() throws IOException {
+        Pcra.PathStatistics statistics = new Pcra.PathStatistics();
+        try (PcraBinaryFormat.Reader reader = new PcraBinaryFormat.Reader(
+                Pcra.PATH_COUNTS_BINARY_FILE, PcraBinaryFormat.PATH_COUNTS)) {
+            for (int i = 0; i < reader.recordCount(); i++) {
+                ByteBuffer record = reader.record(i);
+                int kind = record.getInt();
+                long path = record.getLong();
+                int count = record.getInt();
+                if (kind == PcraBinaryFormat.PATH_COUNT) {
+                    statistics.pathCounts.addTo(path, count);
+                } else {
+                    statistics.relatedPathCounts.addTo(path, count);
+                }
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Returns the path statistics that the heads contributed in the given graph.
+     */
+    private Pcra.PathStatistics countStatistics(KGGraph graph, int[] heads, ForkJoinPool pool)
+            throws Exception {
+        List<Pcra.PathStatistics> threadStatistics = Collections.synchronizedList(new ArrayList<>());
+        ThreadLocal<Pcra.PathStatistics> localStatistics = ThreadLocal.withInitial(() -> {
+            Pcra.PathStatistics statistics = new Pcra.PathStatistics();
+            threadStatistics.add(statistics);
+            return statistics;
+        });
+        pool.submit(() -> Arrays.stream(heads).parallel().forEach(headId -> {
+            if (graph.hasEdges(headId)) {
+                Pcra.allocateResources(graph, headId, options.hops, options.maxFrontier,
+                        localStatistics.get());
+            }
+        })).get();
+
+        Pcra.PathStatistics statistics = new Pcra.PathStatistics();
+        threadStatistics.forEach(statistics::addAll);
+        return statistics;
+    }
+
+    /**
+     * Rewrites a PATH_RESOURCES output in head order, with the records of the affected heads
+     * recomputed and those of all other heads copied from the previous binary file.
+     *
+     * @param triples the triples to join against the affected heads, or null for path2
+     */
+    private void patch(File textFile, File binaryFile, Pcra.TripleIndex triples, boolean[] affected,
+            Map<Integer, Map<Long, Map<Long, Float>>> headPathResources, Set<Long> reliablePaths)
+            throws IOException {
+        File patchedFile = new File(binaryFile.getPath() + ".tmp");
+        try (PcraBinaryFormat.Reader reader = new PcraBinaryFormat.Reader(binaryFile,
+                PcraBinaryFormat.PATH_RESOURCES);
+                PathResourceWriter writer = PathResourceWriter.open(options, graph.idToEntity,
+                        textFile, patchedFile)) {
+            // Counting sort the previous records by head, keeping their order within each head
+            int[] recordHeads = new int[reader.recordCount()];
+            int[] offsets = new int[graph.entityCount + 1];
+            for (int i = 0; i < recordHeads.length; i++) {
+                recordHeads[i] = reader.record(i).getInt();
+                if (recordHeads[i] < graph.entityCount) {
+                    offsets[recordHeads[i] + 1]++;
+                }
+            }
+            for (int i = 0; i < graph.entityCount; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            int[] cursor = Arrays.copyOf(offsets, graph.entityCount);
+            int[] records = new int[offsets[graph.entityCount]];
+            for (int i = 0; i < recordHeads.length; i++) {
+                if (recordHeads[i] < graph.entityCount) {
+                    records[cursor[recordHeads[i]]++] = i;
+                }
+            }
+
+            if (triples != null) {
+                triples.writeUnresolvedTriples(writer);
+            }
+            for (int headId = 0; headId < graph.entityCount; headId++) {
+                if (!affected[headId]) {
+                    for (int i = offsets[headId]; i < offsets[headId + 1]; i++) {
+                        ByteBuffer record = reader.record(records[i]);
+                        record.getInt();
+                        int tailId = record.getInt();
+                        int relationId = record.getInt();
+                        Map<Long, Float> reliablePathResources = PcraBinaryFormat.readPathResources(record);
+                        if (triples == null) {
+                            reliablePaths.addAll(reliablePathResources.keySet());
+                        }
+                        writer.write(headId, tailId, relationId, reliablePathResources);
+                    }
+                    continue;
+                }
+
+                Map<Long, Map<Long, Float>> reliablePathResources =
+                        headPathResources.getOrDefault(headId, Collections.emptyMap());
+                if (triples != null) {
+                    triples.writeHead(writer, headId, reliablePathResources);
+                    continue;
+                }
+                for (Map.Entry<Long, Map<Long, Float>> entry : reliablePathResources.entrySet()) {
+                    reliablePaths.addAll(entry.getValue().keySet());
+                    writer.write(headId, KGGraph.pairTail(entry.getKey()), -1, entry.getValue());
+                }
+            }
+        }
+        Files.move(patchedFile.toPath(), binaryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
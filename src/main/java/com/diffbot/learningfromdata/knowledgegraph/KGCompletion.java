@@ -21,6 +21,7 @@ public class KGCompletion {
     static final File KB2E_DIRECTORY = new File("data/kb2e");
     static final File TRAIN_FILE = new File(KB2E_DIRECTORY, "train.txt");
     static final File TEST_FILE = new File(KB2E_DIRECTORY, "test.txt");
+    static final File VALID_FILE = new File(KB2E_DIRECTORY, "valid.txt");
     static final File ENTITY2ID_FILE = new File(KB2E_DIRECTORY, "entity2id.txt");
     static final File RELATION2ID_FILE = new File(KB2E_DIRECTORY, "relation2id.txt");
 
@@ -31,12 +32,14 @@ public class KGCompletion {
      * Creates the following files in KB2E_DIRECTORY:
      * train.txt: training file, format (e1, e2, rel).
      * test.txt: test file, same format as train.txt.
+     * valid.txt: validation file for early stopping, same format as train.txt.
      * entity2id.txt: all entities and corresponding ids, one per line.
      * relation2id.txt: all relations and corresponding ids, one per line.
      * e1_e2.txt: all top-500 entity pairs mentioned in the task entity prediction.
      */
     private static void createKb2eInputFiles() throws IOException {
         final float TEST_HOLDOUT = 0;
+        final float VALID_HOLDOUT = 0.01f;
         long start = System.currentTimeMillis();
 
         KB2E_DIRECTORY.mkdirs();
@@ -44,7 +47,8 @@ public class KGCompletion {
         Set<String> entityIds = ConcurrentHashMap.newKeySet();
         try (DiffbotEntityReader der = new DiffbotEntityReader(ENTITY_DUMP.getPath());
                 BufferedWriter trainWriter = FileTools.bufferedWriter(TRAIN_FILE);
-                BufferedWriter testWriter = FileTools.bufferedWriter(TEST_FILE)) {
+                BufferedWriter testWriter = FileTools.bufferedWriter(TEST_FILE);
+                BufferedWriter validWriter = FileTools.bufferedWriter(VALID_FILE)) {
             int batchCount = 0;
             for (List<DiffbotEntity> batch = der.nextBatch(10000); batch != null;
                  batch = der.nextBatch(10000)){
@@ -71,6 +75,10 @@ public class KGCompletion {
                                 synchronized (testWriter) {
                                     testWriter.write(headId + "\t" + tailId + "\t" + relation + "\n");
                                 }
+                            } else if (random < TEST_HOLDOUT + VALID_HOLDOUT) {
+                                synchronized (validWriter) {
+                                    validWriter.write(headId + "\t" + tailId + "\t" + relation + "\n");
+                                }
                             } else {
                                 synchronized (trainWriter) {
                                     trainWriter.write(headId + "\t" + tailId + "\t" + relation + "\n");
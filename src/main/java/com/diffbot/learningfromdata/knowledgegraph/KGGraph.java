@@ -0,0 +1,371 @@
+package com.diffbot.ml;
+
+import com.diffbot.toolbox.FileTools;
+import com.esotericsoftware.minlog.Log;
+import com.google.common.base.Splitter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Compact, read-only adjacency store of the training triples used by Pcra.
+ *
+ * Entities and relations are interned to the int ids from entity2id.txt and relation2id.txt. Each
+ * triple `head tail relation` is stored twice, once as-is and once from tail to head under the
+ * inverse relation (relationId + relationCount). Duplicate triples are collapsed.
+ *
+ * Edges are kept in compressed sparse row (CSR) form: the edges sourced from entity `e` are
+ * [edgeStart(e), edgeEnd(e)), sorted by (relation, tail) so the tails of one relation are a
+ * contiguous run. Entity pairs are indexed by `head << 32 | tail` in a sorted long[] with the
+ * relations connecting each pair stored in a second CSR.
+ */
+class KGGraph {
+    private static final Splitter WHITESPACE_SPLITTER = Splitter.onPattern("\\s+").trimResults().omitEmptyStrings();
+
+    final int entityCount;
+    final int relationCount;
+    final String[] idToEntity;
+    final Map<String, Integer> entityToId;
+    final Map<String, Integer> relationToId;
+
+    private final int[] edgeOffsets;
+    private final int[] edgeRelations;
+    private final int[] edgeTails;
+
+    private final long[] pairKeys;
+    private final int[] pairOffsets;
+    private final int[] pairRelations;
+
+    private KGGraph(String[] idToEntity, Map<String, Integer> entityToId,
+            Map<String, Integer> relationToId, int[] edgeOffsets, int[] edgeRelations,
+            int[] edgeTails, long[] pairKeys, int[] pairOffsets, int[] pairRelations) {
+        this.entityCount = idToEntity.length;
+        this.relationCount = relationToId.size();
+        this.idToEntity = idToEntity;
+        this.entityToId = entityToId;
+        this.relationToId = relationToId;
+        this.edgeOffsets = edgeOffsets;
+        this.edgeRelations = edgeRelations;
+        this.edgeTails = edgeTails;
+        this.pairKeys = pairKeys;
+        this.pairOffsets = pairOffsets;
+        this.pairRelations = pairRelations;
+    }
+
+    /**
+     * Loads the graph from entity2id.txt, relation2id.txt and train.txt.
+     */
+    static KGGraph load() throws IOException {
+        return load(KGCompletion.TRAIN_FILE);
+    }
+
+    static KGGraph load(File triplesFile) throws IOException {
+        Map<String, Integer> entityToId = readIds(KGCompletion.ENTITY2ID_FILE);
+        String[] idToEntity = new String[entityToId.values().stream().mapToInt(i -> i + 1).max().orElse(0)];
+        entityToId.forEach((entity, id) -> idToEntity[id] = entity);
+
+        Map<String, Integer> relationToId = readIds(KGCompletion.RELATION2ID_FILE);
+        int relationCount = relationToId.size();
+        if (2 * relationCount > RelationPaths.MAX_RELATIONS) {
+            throw new IllegalArgumentException("Too many relations to pack into relation paths: " +
+                    relationCount);
+        }
+
+        long start = System.currentTimeMillis();
+        Builder builder = new Builder(idToEntity.length, relationCount);
+        try (BufferedReader br = FileTools.bufferedReader(triplesFile)) {
+            for (String line = br.readLine(); line != null; line = br.readLine()) {
+                Iterator<String> split = WHITESPACE_SPLITTER.split(line).iterator();
+                String head = split.next();
+                String tail = split.next();
+                String relation = split.next();
+
+                Integer headId = entityToId.get(head);
+                Integer tailId = entityToId.get(tail);
+                Integer relationId = relationToId.get(relation);
+                if (headId == null || tailId == null || relationId == null) {
+                    Log.warn("KGGraph.load", "Skipping triple with unknown ids: " + line);
+                    continue;
+                }
+                builder.addTriple(headId, tailId, relationId);
+
+                if (builder.edgeCount % 1_000_000 == 0) {
+                    Log.info("KGGraph.load", "Loaded " + builder.edgeCount + " edges in " +
+                            (System.currentTimeMillis() - start) + "ms...");
+                }
+            }
+        }
+        return builder.build(idToEntity, entityToId, relationToId);
+    }
+
+    /**
+     * Builds a graph of `tripleCount` interned triples, naming entities `e<id>` and relations
+     * `r<id>`. Used for synthetic graphs, see PcraBenchmark.
+     */
+    static KGGraph fromTriples(int entityCount, int relationCount, int[] heads, int[] tails,
+            int[] relations, int tripleCount) {
+        String[] idToEntity = new String[entityCount];
+        Map<String, Integer> entityToId = new HashMap<>();
+        for (int i = 0; i < entityCount; i++) {
+            idToEntity[i] = "e" + i;
+            entityToId.put(idToEntity[i], i);
+        }
+        Map<String, Integer> relationToId = new HashMap<>();
+        for (int i = 0; i < relationCount; i++) {
+            relationToId.put("r" + i, i);
+        }
+
+        Builder builder = new Builder(entityCount, relationCount);
+        for (int i = 0; i < tripleCount; i++) {
+            builder.addTriple(heads[i], tails[i], relations[i]);
+        }
+        return builder.build(idToEntity, entityToId, relationToId);
+    }
+
+    /**
+     * Returns the graph as it was before `addedTriples` were added to it and `removedTriples`
+     * removed from it, each triple being {headId, tailId, relationId}.
+     */
+    KGGraph revert(List<int[]> addedTriples, List<int[]> removedTriples) {
+        // map of `headId tailId` -> added relationIds
+        Map<Long, Set<Integer>> added = new HashMap<>();
+        for (int[] triple : addedTriples) {
+            added.computeIfAbsent(pairKey(triple[0], triple[1]), k -> new HashSet<>()).add(triple[2]);
+        }
+
+        Builder builder = new Builder(entityCount, relationCount);
+        for (int headId = 0; headId < entityCount; headId++) {
+            for (int edge = edgeOffsets[headId]; edge < edgeOffsets[headId + 1]; edge++) {
+                int relationId = edgeRelations[edge];
+                if (relationId < relationCount && !added.getOrDefault(
+                        pairKey(headId, edgeTails[edge]), Collections.emptySet()).contains(relationId)) {
+                    builder.addTriple(headId, edgeTails[edge], relationId);
+                }
+            }
+        }
+        for (int[] triple : removedTriples) {
+            builder.addTriple(triple[0], triple[1], triple[2]);
+        }
+        return builder.build(idToEntity, entityToId, relationToId);
+    }
+
+    /**
+     * Builds a graph from directed edges that already include their inverse edges, eg the edges of
+     * one shard and its halo in ShardedPcra.
+     */
+    static KGGraph fromEdges(String[] idToEntity, Map<String, Integer> entityToId,
+            Map<String, Integer> relationToId, int[] heads, int[] relations, int[] tails,
+            int edgeCount) {
+        Builder builder = new Builder(idToEntity.length, relationToId.size());
+        for (int i = 0; i < edgeCount; i++) {
+            builder.addEdge(heads[i], relations[i], tails[i]);
+        }
+        return builder.build(idToEntity, entityToId, relationToId);
+    }
+
+    static Map<String, Integer> readIds(File file) throws IOException {
+        Map<String, Integer> ids = new HashMap<>();
+        try (BufferedReader br = FileTools.bufferedReader(file)) {
+            for (String line = br.readLine(); line != null; line = br.readLine()) {
+                List<String> split = WHITESPACE_SPLITTER.splitToList(line);
+                ids.put(split.get(0), Integer.valueOf(split.get(1)));
+            }
+        }
+        return ids;
+    }
+
+    int inverseRelation(int relationId) {
+        return relationId < relationCount ? relationId + relationCount : relationId - relationCount;
+    }
+
+    int edgeCount() {
+        return edgeTails.length;
+    }
+
+    int pairCount() {
+        return pairKeys.length;
+    }
+
+    boolean hasEdges(int entityId) {
+        return edgeOffsets[entityId] < edgeOffsets[entityId + 1];
+    }
+
+    int edgeStart(int entityId) {
+        return edgeOffsets[entityId];
+    }
+
+    int edgeEnd(int entityId) {
+        return edgeOffsets[entityId + 1];
+    }
+
+    int edgeRelation(int edge) {
+        return edgeRelations[edge];
+    }
+
+    int edgeTail(int edge) {
+        return edgeTails[edge];
+    }
+
+    /**
+     * Returns the end of the run of edges starting at `edge` that share its relation, ie all tails
+     * of (head, edgeRelation(edge)) are [edge, relationEnd(edge, edgeEnd(head))).
+     */
+    int relationEnd(int edge, int end) {
+        int relationId = edgeRelations[edge];
+        int i = edge + 1;
+        while (i < end && edgeRelations[i] == relationId) {
+            i++;
+        }
+        return i;
+    }
+
+    static long pairKey(int headId, int tailId) {
+        return ((long) headId << 32) | (tailId & 0xFFFFFFFFL);
+    }
+
+    static int pairHead(long pairKey) {
+        return (int) (pairKey >>> 32);
+    }
+
+    static int pairTail(long pairKey) {
+        return (int) pairKey;
+    }
+
+    /**
+     * Returns the index of the (headId, tailId) pair, or -1 if no relation connects them.
+     */
+    int findPair(int headId, int tailId) {
+        int index = Arrays.binarySearch(pairKeys, pairKey(headId, tailId));
+        return index < 0 ? -1 : index;
+    }
+
+    long pairKeyAt(int pairIndex) {
+        return pairKeys[pairIndex];
+    }
+
+    /**
+     * Returns the index of the first pair sourced from headId, the pairs of a head being
+     * [headPairStart(head), headPairEnd(head)).
+     */
+    int headPairStart(int headId) {
+        return lowerBound(pairKey(headId, 0));
+    }
+
+    int headPairEnd(int headId) {
+        return lowerBound(pairKey(headId + 1, 0));
+    }
+
+    private int lowerBound(long key) {
+        int index = Arrays.binarySearch(pairKeys, key);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    int pairRelationStart(int pairIndex) {
+        return pairOffsets[pairIndex];
+    }
+
+    int pairRelationEnd(int pairIndex) {
+        return pairOffsets[pairIndex + 1];
+    }
+
+    int pairRelation(int i) {
+        return pairRelations[i];
+    }
+
+    private static class Builder {
+        private final int entityCount;
+        private final int relationCount;
+        private int[] heads = new int[1024];
+        private int[] relations = new int[1024];
+        private int[] tails = new int[1024];
+        private int edgeCount = 0;
+
+        Builder(int entityCount, int relationCount) {
+            this.entityCount = entityCount;
+            this.relationCount = relationCount;
+        }
+
+        void addTriple(int headId, int tailId, int relationId) {
+            addEdge(headId, relationId, tailId);
+            addEdge(tailId, relationId + relationCount, headId);
+        }
+
+        private void addEdge(int headId, int relationId, int tailId) {
+            if (edgeCount == heads.length) {
+                heads = Arrays.copyOf(heads, 2 * edgeCount);
+                relations = Arrays.copyOf(relations, 2 * edgeCount);
+                tails = Arrays.copyOf(tails, 2 * edgeCount);
+            }
+            heads[edgeCount] = headId;
+            relations[edgeCount] = relationId;
+            tails[edgeCount] = tailId;
+            edgeCount++;
+        }
+
+        KGGraph build(String[] idToEntity, Map<String, Integer> entityToId,
+                Map<String, Integer> relationToId) {
+            // Counting sort the edges by head
+            int[] offsets = new int[entityCount + 1];
+            for (int i = 0; i < edgeCount; i++) {
+                offsets[heads[i] + 1]++;
+            }
+            for (int i = 0; i < entityCount; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            long[] sorted = new long[edgeCount];
+            int[] cursor = Arrays.copyOf(offsets, entityCount);
+            for (int i = 0; i < edgeCount; i++) {
+                sorted[cursor[heads[i]]++] = ((long) relations[i] << 32) | tails[i];
+            }
+            heads = relations = tails = null;
+
+            // Sort each head's edges by (relation, tail), drop duplicates and index the pairs
+            int[] edgeOffsets = new int[entityCount + 1];
+            int[] edgeRelations = new int[edgeCount];
+            int[] edgeTails = new int[edgeCount];
+            long[] pairKeys = new long[edgeCount];
+            int[] pairOffsets = new int[edgeCount + 1];
+            int[] pairRelations = new int[edgeCount];
+            int edges = 0;
+            int pairs = 0;
+            for (int headId = 0; headId < entityCount; headId++) {
+                int start = offsets[headId];
+                int end = offsets[headId + 1];
+                Arrays.sort(sorted, start, end);
+
+                long[] tailRelations = new long[end - start];
+                int headEdges = 0;
+                for (int i = start; i < end; i++) {
+                    if (i > start && sorted[i] == sorted[i - 1]) {
+                        continue;
+                    }
+                    int relationId = (int) (sorted[i] >>> 32);
+                    int tailId = (int) sorted[i];
+                    edgeRelations[edges] = relationId;
+                    edgeTails[edges] = tailId;
+                    edges++;
+                    tailRelations[headEdges++] = ((long) tailId << 32) | relationId;
+                }
+                edgeOffsets[headId + 1] = edges;
+
+                Arrays.sort(tailRelations, 0, headEdges);
+                for (int i = 0; i < headEdges; i++) {
+                    int tailId = (int) (tailRelations[i] >>> 32);
+                    if (i == 0 || tailId != (int) (tailRelations[i - 1] >>> 32)) {
+                        pairOffsets[pairs] = edges - headEdges + i;
+                        pairKeys[pairs++] = pairKey(headId, tailId);
+                    }
+                    pairRelations[edges - headEdges + i] = (int) tailRelations[i];
+                }
+            }
+            pairOffsets[pairs] = edges;
+
+            return new KGGraph(idToEntity, entityToId, relationToId, edgeOffsets,
+                    Arrays.copyOf(edgeRelations, edges), Arrays.copyOf(edgeTails, edges),
+                    Arrays.copyOf(pairKeys, pairs), Arrays.copyOf(pairOffsets, pairs + 1),
+                    Arrays.copyOf(pairRelations, edges));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.diffbot.ml;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from long to float with linear probing, for accumulating the resource
+ * of relation paths (see RelationPaths) without boxing or the two lookups of Map.merge.
+ *
+ * Absent keys have the value 0. The key 0 marks empty slots, so it is stored on the side.
+ */
+final class LongFloatHashMap {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private float[] values;
+    private int mask;
+    private int size = 0;
+    private boolean hasZeroKey = false;
+    private float zeroValue = 0;
+
+    LongFloatHashMap() {
+        this(4);
+    }
+
+    LongFloatHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new long[capacity];
+        values = new float[capacity];
+        mask = capacity - 1;
+    }
+
+    private int slot(long key) {
+        int slot = LongIntHashMap.hash(key) & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean containsKey(long key) {
+        return key == 0 ? hasZeroKey : keys[slot(key)] != 0;
+    }
+
+    float get(long key) {
+        return key == 0 ? zeroValue : values[slot(key)];
+    }
+
+    /**
+     * Adds delta to the value of key with a single probe.
+     */
+    void addTo(long key, float delta) {
+        if (key == 0) {
+            size += hasZeroKey ? 0 : 1;
+            hasZeroKey = true;
+            zeroValue += delta;
+            return;
+        }
+        int slot = slot(key);
+        if (keys[slot] == 0) {
+            keys[slot] = key;
+            values[slot] = delta;
+            if (++size > LOAD_FACTOR * keys.length) {
+                rehash();
+            }
+            return;
+        }
+        values[slot] += delta;
+    }
+
+    interface EntryConsumer {
+        void accept(long key, float value);
+    }
+
+    void forEach(EntryConsumer consumer) {
+        if (hasZeroKey) {
+            consumer.accept(0, zeroValue);
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                consumer.accept(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    float sum() {
+        float sum = hasZeroKey ? zeroValue : 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                sum += values[slot];
+            }
+        }
+        return sum;
+    }
+
+    void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        size = 0;
+        hasZeroKey = false;
+        zeroValue = 0;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        float[] oldValues = values;
+        keys = new long[2 * oldKeys.length];
+        values = new float[2 * oldValues.length];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.diffbot.ml;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from long to int with linear probing, for counting relation paths
+ * (see RelationPaths) without boxing or the two lookups of Map.merge.
+ *
+ * Absent keys have the value 0. The key 0 marks empty slots, so it is stored on the side.
+ */
+final class LongIntHashMap {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+    private boolean hasZeroKey = false;
+    private int zeroValue = 0;
+
+    LongIntHashMap() {
+        this(16);
+    }
+
+    LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slot(long key) {
+        int slot = hash(key) & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean containsKey(long key) {
+        return key == 0 ? hasZeroKey : keys[slot(key)] != 0;
+    }
+
+    int get(long key) {
+        return key == 0 ? zeroValue : values[slot(key)];
+    }
+
+    void put(long key, int value) {
+        if (key == 0) {
+            size += hasZeroKey ? 0 : 1;
+            hasZeroKey = true;
+            zeroValue = value;
+            return;
+        }
+        int slot = slot(key);
+        if (keys[slot] == 0) {
+            keys[slot] = key;
+            if (++size > LOAD_FACTOR * keys.length) {
+                values[slot] = value;
+                rehash();
+                return;
+            }
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Adds delta to the value of key with a single probe.
+     */
+    void addTo(long key, int delta) {
+        if (key == 0) {
+            put(0, zeroValue + delta);
+            return;
+        }
+        int slot = slot(key);
+        if (keys[slot] == 0) {
+            keys[slot] = key;
+            values[slot] = delta;
+            if (++size > LOAD_FACTOR * keys.length) {
+                rehash();
+            }
+            return;
+        }
+        values[slot] += delta;
+    }
+
+    /**
+     * Returns the value of key with a single probe, first putting value if the key is absent, in
+     * which case it returns 0.
+     */
+    int putIfAbsent(long key, int value) {
+        if (key == 0) {
+            if (hasZeroKey) {
+                return zeroValue;
+            }
+            put(0, value);
+            return 0;
+        }
+        int slot = slot(key);
+        if (keys[slot] != 0) {
+            return values[slot];
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > LOAD_FACTOR * keys.length) {
+            rehash();
+        }
+        return 0;
+    }
+
+    void addAll(LongIntHashMap other) {
+        other.forEach(this::addTo);
+    }
+
+    interface EntryConsumer {
+        void accept(long key, int value);
+    }
+
+    void forEach(EntryConsumer consumer) {
+        if (hasZeroKey) {
+            consumer.accept(0, zeroValue);
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                consumer.accept(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    long[] keys() {
+        long[] keys = new long[size];
+        int i = 0;
+        if (hasZeroKey) {
+            keys[i++] = 0;
+        }
+        for (long key : this.keys) {
+            if (key != 0) {
+                keys[i++] = key;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Removes the entries whose value is 0, eg after counts were subtracted.
+     */
+    void removeZeroValues() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length];
+        values = new int[oldValues.length];
+        size = 0;
+        hasZeroKey = hasZeroKey && zeroValue != 0;
+        if (hasZeroKey) {
+            size++;
+        }
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0 && oldValues[i] != 0) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                size++;
+            }
+        }
+    }
+
+    void clear() {
+        if (size == 0) {
+            return;
+        }
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        size = 0;
+        hasZeroKey = false;
+        zeroValue = 0;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[2 * oldKeys.length];
+        values = new int[2 * oldValues.length];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.diffbot.ml;
+
+/**
+ * Applies gradient steps to the rows of an EmbeddingTable, keeping any per-element or per-row state
+ * in flat arrays parallel to the table. Only the rows a step touches are read or written, so the
+ * cost of a step doesn't depend on the size of the table.
+ *
+ * Steps to the same row must not run concurrently, except in Hogwild mode which accepts races on
+ * the optimizer state like it does on the embeddings.
+ */
+interface Optimizer {
+    String SGD = "sgd";
+    String ADAGRAD = "adagrad";
+    String ADAM = "adam";
+
+    /**
+     * Subtracts the step for gradient, which has table.dimension elements, from the row of table.
+     */
+    void step(EmbeddingTable table, int row, float[] gradient, float learningRate);
+
+    String name();
+
+    /**
+     * The state of the optimizer, for TrainingCheckpoint. The arrays are live, so a checkpoint can
+     * also restore them in place.
+     */
+    float[][] floatState();
+
+    int[][] intState();
+
+    Optimizer copy();
+
+    static Optimizer create(String name, int rowCount, int dimension) {
+        switch (name) {
+            case SGD:
+                return new Sgd();
+            case ADAGRAD:
+                return new AdaGrad(rowCount, dimension);
+            case ADAM:
+                return new Adam(rowCount, dimension);
+            default:
+                throw new IllegalArgumentException("Unknown optimizer " + name);
+        }
+    }
+
+    // TODO: tune rates for Diffbot KG
+    static float defaultLearningRate(String name) {
+        switch (name) {
+            case SGD:
+                return 0.02f;
+            case ADAGRAD:
+                return 0.05f;
+            case ADAM:
+                return 0.005f;
+            default:
+                throw new IllegalArgumentException("Unknown optimizer " + name);
+        }
+    }
+
+    /**
+     * Plain stochastic gradient descent, which has no state.
+     */
+    class Sgd implements Optimizer {
+        @Override
+        public void step(EmbeddingTable table, int row, float[] gradient, float learningRate) {
+            float[] values = table.values;
+            int offset = table.offset(row);
+            for (int j = 0; j < gradient.length; j++) {
+                values[offset + j] -= learningRate * gradient[j];
+            }
+        }
+
+        @Override
+        public String name() {
+            return SGD;
+        }
+
+        @Override
+        public float[][] floatState() {
+            return new float[0][];
+        }
+
+        @Override
+        public int[][] intState() {
+            return new int[0][];
+        }
+
+        @Override
+        public Optimizer copy() {
+            return this;
+        }
+    }
+
+    /**
+     * AdaGrad scales the step of each element down by the root of the sum of its squared
+     * gradients, so rarely updated entities keep learning quickly while frequent ones settle.
+     *
+     * See Duchi et al, Adaptive Subgradient Methods for Online Learning and Stochastic
+     * Optimization, 2011
+     */
+    class AdaGrad implements Optimizer {
+        private static final float EPSILON = 1e-6f;
+
+        private final float[] squaredGradients;
+
+        AdaGrad(int rowCount, int dimension) {
+            squaredGradients = new float[rowCount * dimension];
+        }
+
+        private AdaGrad(float[] squaredGradients) {
+            this.squaredGradients = squaredGradients;
+        }
+
+        @Override
+        public void step(EmbeddingTable table, int row, float[] gradient, float learningRate) {
+            float[] values = table.values;
+            int offset = table.offset(row);
+            for (int j = 0; j < gradient.length; j++) {
+                float g = gradient[j];
+                float sum = squaredGradients[offset + j] += g * g;
+                values[offset + j] -= learningRate * g / ((float) Math.sqrt(sum) + EPSILON);
+            }
+        }
+
+        @Override
+        public String name() {
+            return ADAGRAD;
+        }
+
+        @Override
+        public float[][] floatState() {
+            return new float[][] {squaredGradients};
+        }
+
+        @Override
+        public int[][] intState() {
+            return new int[0][];
+        }
+
+        @Override
+        public Optimizer copy() {
+            return new AdaGrad(squaredGradients.clone());
+        }
+    }
+
+    /**
+     * Lazy Adam: the moments of a row only decay when the row is updated, and its bias correction
+     * uses the number of times the row was updated, so a step only touches its own row.
+     *
+     * See Kingma and Ba, Adam: A Method for Stochastic Optimization, 2015
+     */
+    class Adam implements Optimizer {
+        private static final float BETA1 = 0.9f;
+        private static final float BETA2 = 0.999f;
+        private static final float EPSILON = 1e-8f;
+
+        private final float[] firstMoments;
+        private final float[] secondMoments;
+        private final int[] rowSteps;
+
+        Adam(int rowCount, int dimension) {
+            this(new float[rowCount * dimension], new float[rowCount * dimension], new int[rowCount]);
+        }
+
+        private Adam(float[] firstMoments, float[] secondMoments, int[] rowSteps) {
+            this.firstMoments = firstMoments;
+            this.secondMoments = secondMoments;
+            this.rowSteps = rowSteps;
+        }
+
+        @Override
+        public void step(EmbeddingTable table, int row, float[] gradient, float learningRate) {
+            int t = ++rowSteps[row];
+            float rate = learningRate * (float) (Math.sqrt(1 - Math.pow(BETA2, t)) / (1 - Math.pow(BETA1, t)));
+            float[] values = table.values;
+            int offset = table.offset(row);
+            for (int j = 0; j < gradient.length; j++) {
+                float g = gradient[j];
+                float m = firstMoments[offset + j] = BETA1 * firstMoments[offset + j] + (1 - BETA1) * g;
+                float v = secondMoments[offset + j] = BETA2 * secondMoments[offset + j] + (1 - BETA2) * g * g;
+                values[offset + j] -= rate * m / ((float) Math.sqrt(v) + EPSILON);
+            }
+        }
+
+        @Override
+        public String name() {
+            return ADAM;
+        }
+
+        @Override
+        public float[][] floatState() {
+            return new float[][] {firstMoments, secondMoments};
+        }
+
+        @Override
+        public int[][] intState() {
+            return new int[][] {rowSteps};
+        }
+
+        @Override
+        public Optimizer copy() {
+            return new Adam(firstMoments.clone(), secondMoments.clone(), rowSteps.clone());
+        }
+    }
+}
@@ -19,7 +19,7 @@ import java.util.*;
  *
  * Required inputs in the input directory (generated by KGCompletion.createKb2eInputFiles):
  * train.txt: training file, format (e1, e2, rel).
- * valid.txt: validation file, same format as train.txt -- currently unused
+ * valid.txt: validation file, same format as train.txt -- only used by PTransEAddTrain for early stopping
  * test.txt: test file, same format as train.txt.
  * entity2id.txt: all entities and corresponding ids, one per line.
  * relation2id.txt: all relations and corresponding ids, one per line.
@@ -119,6 +119,8 @@ public class PTransE {
 //            for (String headId : ImmutableList.of("/m/06rf7", "/m/0c94fn", "/m/016ywr")) {
                 countedHeadEntities++;
 //                System.out.println(headId + "\t" + countedHeadEntities);
+                // tails reached from the current headId, in the order they were reached
+                Set<String> reachedTailIds = new LinkedHashSet<>();
 
                 // Count 1-hop paths
                 for (String relationId : headRelationTailMap.get(headId).keySet()) {
@@ -135,6 +137,7 @@ public class PTransE {
                         float delta = 1 / (float) tailIds.size();
 //                        System.out.println("\t\t" + getEntityPairKey(headId, tailId) + " " + relationId + " " + delta);
                         nestedMapAdd(pathResources, getEntityPairKey(headId, tailId), relationId, delta);
+                        reachedTailIds.add(tailId);
                     }
                 }
 
@@ -162,6 +165,7 @@ public class PTransE {
                                         float delta = pathResources.get(entityPairKey).get(relationId) / (float) tailTailIds.size();
 //                                        System.out.println("\t\t" + nestedPairKey + " " + nestedRelationKey + " " + delta);
                                         nestedMapAdd(pathResources, nestedPairKey, nestedRelationKey, delta);
+                                        reachedTailIds.add(tailTailId);
                                     }
                                 }
                             }
@@ -169,8 +173,8 @@ public class PTransE {
                     }
                 }
 
-                // Check all entities as possible tail or 2-hop tails for the current headId
-                for (String tailId : headRelationTailMap.keySet()) {
+                // Only the 1-hop and 2-hop tails of the current headId have path resources
+                for (String tailId : reachedTailIds) {
                     String entityPairKey = getEntityPairKey(headId, tailId);
                     if (pathResources.containsKey(entityPairKey)) {
                         path2Writer.write(entityPairKey + "\n");
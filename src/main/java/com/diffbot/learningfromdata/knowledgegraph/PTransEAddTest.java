@@ -6,31 +6,105 @@ import com.diffbot.toolbox.FileTools;
 import com.diffbot.utils.Pair;
 import com.esotericsoftware.minlog.Log;
 import com.google.common.base.Splitter;
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Inputs (provided by PTransEAddTrain):
  *     entity2id.txt
  *     relation2id.txt
  *     train.txt
- *     path2.txt
- *     test.txt
+ *     path2.bin (or path2.txt)
+ *     test_pra.bin (or test_pra.txt)
+ *     confidence.bin (or confidence.txt)
  *     entity2vec.txt
  *     relation2vec.txt
  *
+ * Outputs, with --output:
+ *     inference-NNNNN.tsv, see runBatch
+ * With --ann:
+ *     entity2vec.ivf, the SimilarityIndex of the Persons, reused while newer than entity2vec.txt
+ *
+ * Usage: PTransEAddTest [--output DIR [--threads N] [--shards N]] [--ann [--probes N]]
+ *
  * TODO: refactor this into PTransEAddTrain as PTransEAdd
  * TODO: port to Spark/Tensorflow
  */
 public class PTransEAddTest {
     private static final Splitter WHITESPACE_SPLITTER = Splitter.onPattern("\\s+").trimResults().omitEmptyStrings();
-    private static final int RERANK_NUM = 500;
+    static final int RERANK_NUM = 500;
+    private static final int GUESS_NUM = 8;
+    static final int SIMILAR_NUM = 4;
+    private static final String SIMILAR = "SIMILAR";
+    // the id prefixes of the entity types inferred
+    private static final String PERSON = "P";
+    private static final String SKILL = "S";
+    private static final String ROLE_CATEGORY = "RC";
+    static final File SIMILARITY_INDEX_FILE = new File(KGCompletion.KB2E_DIRECTORY, "entity2vec.ivf");
+
+    static class Options {
+        /**
+         * Infer all heads in parallel into sharded files in this directory instead of logging
+         * them, or null.
+         */
+        File outputDirectory = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        /**
+         * The number of output files, each with a contiguous range of heads. More shards than
+         * threads balance the load.
+         */
+        int shards = 4 * Runtime.getRuntime().availableProcessors();
+        /**
+         * Find similar entities with an approximate SimilarityIndex instead of scanning all of them.
+         */
+        boolean ann = false;
+        /**
+         * The number of SimilarityIndex lists searched per query, trading speed for recall.
+         */
+        int probes = 8;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--output":
+                        options.outputDirectory = new File(args[++i]);
+                        break;
+                    case "--threads":
+                        options.threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--shards":
+                        options.shards = Integer.parseInt(args[++i]);
+                        break;
+                    case "--ann":
+                        options.ann = true;
+                        break;
+                    case "--probes":
+                        options.probes = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument " + args[i]);
+                }
+            }
+            return options;
+        }
+    }
+
+    private final Options options;
     private int entityCount = 0;
     private int relationCount = 0;
 
@@ -38,6 +112,8 @@ public class PTransEAddTest {
     private Map<String, Integer> relationToId = new HashMap<>();
     private Map<Integer, String> idToEntity = new HashMap<>();
     private Map<Integer, String> idToRelation = new HashMap<>();
+    // the ids of the entities of each type prefix, ascending
+    private Map<String, int[]> typeToIds = new HashMap<>();
 
     private Map<Pair<String, Integer>, Float> pathConfidence = new HashMap<>();
     private Map<Pair<Integer, Integer>, List<Pair<int[], Float>>> pathResources = new HashMap<>();
@@ -48,12 +124,139 @@ public class PTransEAddTest {
      */
     private Set<String> trainingTriples = new HashSet<>();
 
-    private float[][] entityVec;
-    private float[][] relationVec;
+    // the degree of the latent feature space, read from entity2vec.txt
+    private int dimension;
+    private EmbeddingTable entityVec;
+    private EmbeddingTable relationVec;
+    // the l2 norm of every entity vector, for scoreSimilarity
+    private float[] entityNorms;
+    // the Persons by cosine similarity, with --ann
+    private SimilarityIndex similarityIndex = null;
+
+    /**
+     * The buffers of one thread of inference, so that heads can be inferred in parallel.
+     */
+    class Inferrer {
+        // the best first-pass candidates of inferTail, which are then reranked with path boost
+        final TopK topTails = new TopK(RERANK_NUM);
+        final TopK topSimilar = new TopK(SIMILAR_NUM);
+
+        /**
+         * Ranks the likeliest tails of the head and relation into topTails, best first.
+         */
+        void inferTail(int headId, int relationId) {
+            int[] candidateIds = tailCandidateIds(relationId);
+            rankTails(headId, relationId, scoreTails(headId, relationId, candidateIds, candidateIds.length));
+        }
+
+        /**
+         * Ranks the tails into topTails like inferTail, given the scores of scoreTails for the
+         * tailCandidateIds of the relation.
+         */
+        void rankTails(int headId, int relationId, float[] scores) {
+            int[] candidateIds = tailCandidateIds(relationId);
+            double minScore = minTailScore(relationId);
+            topTails.clear();
+            for (int i = 0; i < candidateIds.length; i++) {
+                if (scores[i] > minScore) {
+                    topTails.offer(candidateIds[i], scores[i]);
+                }
+            }
+            // Only the best RERANK_NUM candidates are worth the path boost
+            for (int i = 0; i < topTails.size(); i++) {
+                topTails.setScore(i, (float) scoreTriple(headId, topTails.id(i), relationId, true));
+            }
+            topTails.sortDescending();
+        }
+
+        /**
+         * Ranks the Persons most similar to the head into topSimilar, best first.
+         *
+         * TODO: enforce entity type (other than Person)
+         */
+        void getSimilar(int headId) {
+            if (similarityIndex != null) {
+                float[] query = Arrays.copyOfRange(entityVec.values, entityVec.offset(headId),
+                        entityVec.offset(headId) + dimension);
+                similarityIndex.search(query, options.probes, headId, 0.95f, topSimilar);
+                // as a percentage, like scoreSimilarity
+                for (int i = 0; i < topSimilar.size(); i++) {
+                    topSimilar.setScore(i, 100 * topSimilar.score(i));
+                }
+                return;
+            }
+
+            topSimilar.clear();
+            for (int i : typeToIds.get(PERSON)) {
+                if (headId == i) {
+                    continue;
+                }
+
+                double similarity = scoreSimilarity(headId, i);
+                if (similarity > 95) {
+                    topSimilar.offer(i, (float) similarity);
+                }
+            }
+            topSimilar.sortDescending();
+        }
+    }
+
+    PTransEAddTest(Options options) {
+        this.options = options;
+    }
 
     public void test() throws IOException {
+        if (load()) {
+            run();
+        }
+    }
+
+    /**
+     * Loads the model and the data inference needs, returning false if the vectors don't match.
+     */
+    boolean load() throws IOException {
         prepare();
-        run();
+        Log.info("PTransETest.run", "relationCount=" + relationCount +
+                ", entityCount=" + entityCount);
+        if (!loadVectors()) {
+            return false;
+        }
+
+        entityNorms = new float[entityCount];
+        for (int i = 0; i < entityCount; i++) {
+            entityNorms[i] = (float) entityVec.l2Norm(i);
+        }
+        if (options.ann) {
+            loadSimilarityIndex();
+        }
+        return true;
+    }
+
+    Integer entityId(String entity) {
+        return entityToId.get(entity);
+    }
+
+    Integer relationId(String relation) {
+        return relationToId.get(relation);
+    }
+
+    /**
+     * Returns the ids of the possible tails of the relation, throwing UnsupportedOperationException
+     * for the relations that aren't inferred.
+     */
+    int[] tailCandidateIds(int relationId) {
+        // TODO: enforce entity type generically
+        if (KGRelation.SKILL.ordinal() == relationId) {
+            return typeToIds.get(SKILL);
+        } else if (KGRelation.EMPLOYMENT_CATEGORY.ordinal() == relationId) {
+            return typeToIds.get(ROLE_CATEGORY);
+        }
+        throw new UnsupportedOperationException(
+                "PTransEAddTest.inferTail does not support relationId " + relationId);
+    }
+
+    private static double minTailScore(int relationId) {
+        return KGRelation.SKILL.ordinal() == relationId ? 90 : 88;
     }
 
     private void addRelations(int headId, int tailId, List<Pair<int[], Float>> pathResources) {
@@ -62,6 +265,21 @@ public class PTransEAddTest {
         }
     }
 
+    /**
+     * Partitions the entity ids by the type prefixes inferred, so that inference iterates over
+     * the candidates of a type rather than filtering all entities by prefix.
+     *
+     * The ids aren't renumbered by type, as they index the trained embeddings.
+     */
+    private void indexTypes() {
+        for (String prefix : new String[] {PERSON, SKILL, ROLE_CATEGORY}) {
+            typeToIds.put(prefix, IntStream.range(0, entityCount)
+                    .filter(id -> idToEntity.get(id).startsWith(prefix))
+                    .toArray());
+            Log.info("PTransEAddTest.indexTypes", typeToIds.get(prefix).length + " entities of type " + prefix);
+        }
+    }
+
     private void prepare() throws IOException {
         Log.info("PTransEAddTest.prepare", "Loading entities from " +
                 KGCompletion.ENTITY2ID_FILE + "...");
@@ -75,6 +293,7 @@ public class PTransEAddTest {
                 entityCount++;
             }
         }
+        indexTypes();
 
         Log.info("PTransEAddTest.prepare", "Loading relations from " +
                 KGCompletion.RELATION2ID_FILE + "...");
@@ -90,7 +309,33 @@ public class PTransEAddTest {
             }
         }
 
-        for (File pathFile : ImmutableList.of(Pcra.Mode.TEST.getPathResourceFile(), Pcra.PATH2_FILE)) {
+        Map<File, File> pathFiles = ImmutableMap.of(
+                Pcra.Mode.TEST.getBinaryPathResourceFile(), Pcra.Mode.TEST.getPathResourceFile(),
+                Pcra.PATH2_BINARY_FILE, Pcra.PATH2_FILE);
+        for (Map.Entry<File, File> pathFileEntry : pathFiles.entrySet()) {
+            File binaryPathFile = pathFileEntry.getKey();
+            if (binaryPathFile.exists()) {
+                Log.info("PTransEAddTest.prepare", "Loading triples from " +
+                        binaryPathFile + "...");
+                try (PcraBinaryFormat.Reader reader = new PcraBinaryFormat.Reader(binaryPathFile,
+                        PcraBinaryFormat.PATH_RESOURCES)) {
+                    for (int i = 0; i < reader.recordCount(); i++) {
+                        ByteBuffer record = reader.record(i);
+                        int headId = record.getInt();
+                        int tailId = record.getInt();
+                        record.getInt(); // relationId
+                        List<Pair<int[], Float>> pathResources = new ArrayList<>();
+                        for (int j = record.getInt(); j > 0; j--) {
+                            int[] path = PcraBinaryFormat.readPath(record);
+                            pathResources.add(new Pair<>(path, record.getFloat()));
+                        }
+                        addRelations(headId, tailId, pathResources);
+                    }
+                }
+                continue;
+            }
+
+            File pathFile = pathFileEntry.getValue();
             Log.info("PTransEAddTest.prepare", "Loading triples from " +
                     pathFile + "...");
             try (BufferedReader praReader = FileTools.bufferedReader(pathFile)) {
@@ -172,67 +417,86 @@ public class PTransEAddTest {
             }
         }
 
-        Log.info("PTransEAddTest.prepare", "Loading path confidences from " +
-                Pcra.CONFIDENCE_FILE + "...");
-        try (BufferedReader confidenceReader = FileTools.bufferedReader(Pcra.CONFIDENCE_FILE)) {
-            for (String line = confidenceReader.readLine(); line != null; line = confidenceReader.readLine()) {
-                Iterator<String> parts = WHITESPACE_SPLITTER.split(line).iterator();
-                int size = Integer.valueOf(parts.next());
-
-                List<String> pathList = new ArrayList<>();
-                Iterator<String> pathParts = Pcra.PATH_SPLITTER.split(parts.next()).iterator();
-                for (int j = 0; j < size; j++) {
-                    pathList.add(pathParts.next());
-                }
-                String path = pathList.stream().collect(Collectors.joining(" "));
-                if (pathParts.hasNext()) {
-                    Log.error("PTransEAddTest.prepare", "Unexpected confidence: " + line);
-                    return;
+        if (Pcra.CONFIDENCE_BINARY_FILE.exists()) {
+            Log.info("PTransEAddTest.prepare", "Loading path confidences from " +
+                    Pcra.CONFIDENCE_BINARY_FILE + "...");
+            try (PcraBinaryFormat.Reader reader = new PcraBinaryFormat.Reader(
+                    Pcra.CONFIDENCE_BINARY_FILE, PcraBinaryFormat.CONFIDENCE)) {
+                for (int i = 0; i < reader.recordCount(); i++) {
+                    ByteBuffer record = reader.record(i);
+                    String path = Arrays.stream(PcraBinaryFormat.readPath(record))
+                            .mapToObj(String::valueOf)
+                            .collect(Collectors.joining(" "));
+                    for (int j = record.getInt(); j > 0; j--) {
+                        int relation = record.getInt();
+                        pathConfidence.put(new Pair<>(path, relation), record.getFloat());
+                    }
                 }
+            }
+        } else {
+            Log.info("PTransEAddTest.prepare", "Loading path confidences from " +
+                    Pcra.CONFIDENCE_FILE + "...");
+            try (BufferedReader confidenceReader = FileTools.bufferedReader(Pcra.CONFIDENCE_FILE)) {
+                for (String line = confidenceReader.readLine(); line != null; line = confidenceReader.readLine()) {
+                    Iterator<String> parts = WHITESPACE_SPLITTER.split(line).iterator();
+                    int size = Integer.valueOf(parts.next());
 
-                if (parts.hasNext()) {
-                    Log.error("PTransEAddTrain.prepare", "Unexpected confidence path: " + line);
-                    return;
-                }
+                    List<String> pathList = new ArrayList<>();
+                    Iterator<String> pathParts = Pcra.PATH_SPLITTER.split(parts.next()).iterator();
+                    for (int j = 0; j < size; j++) {
+                        pathList.add(pathParts.next());
+                    }
+                    String path = pathList.stream().collect(Collectors.joining(" "));
+                    if (pathParts.hasNext()) {
+                        Log.error("PTransEAddTest.prepare", "Unexpected confidence: " + line);
+                        return;
+                    }
 
-                String confidences = confidenceReader.readLine();
+                    if (parts.hasNext()) {
+                        Log.error("PTransEAddTrain.prepare", "Unexpected confidence path: " + line);
+                        return;
+                    }
 
-                Iterator<String> confidenceParts = WHITESPACE_SPLITTER.split(confidences).iterator();
-                int confidenceLength = Integer.valueOf(confidenceParts.next());
-                for (int i = 0; i < confidenceLength; i++) {
-                    Integer relation = Integer.valueOf(confidenceParts.next());
+                    String confidences = confidenceReader.readLine();
 
-                    float confidence = Float.valueOf(confidenceParts.next());
-                    pathConfidence.put(new Pair<>(path, relation), confidence);
+                    Iterator<String> confidenceParts = WHITESPACE_SPLITTER.split(confidences).iterator();
+                    int confidenceLength = Integer.valueOf(confidenceParts.next());
+                    for (int i = 0; i < confidenceLength; i++) {
+                        Integer relation = Integer.valueOf(confidenceParts.next());
 
-                    Log.debug(path + "," + relation + "->" + confidence);
-                }
+                        float confidence = Float.valueOf(confidenceParts.next());
+                        pathConfidence.put(new Pair<>(path, relation), confidence);
 
-                if (parts.hasNext()) {
-                    Log.error("PTransEAddTrain.prepare", "Unexpected confidences: " + confidences);
-                    return;
+                        Log.debug(path + "," + relation + "->" + confidence);
+                    }
+
+                    if (parts.hasNext()) {
+                        Log.error("PTransEAddTrain.prepare", "Unexpected confidences: " + confidences);
+                        return;
+                    }
                 }
             }
         }
     }
 
-    private void run() throws IOException {
-        Log.info("PTransETest.run", "relationCount=" + relationCount +
-                ", entityCount=" + entityCount);
-
+    private boolean loadVectors() throws IOException {
         Log.info("Loading Entity Vector from " + PTransEAddTrain.ENTITY2VEC_FILE + "...");
-        entityVec = new float[entityCount][PTransEAddTrain.N];
         try (BufferedReader entityVecReader = FileTools.bufferedReader(PTransEAddTrain.ENTITY2VEC_FILE)) {
             for (int i = 0; i < entityCount; i++) {
                 String row = entityVecReader.readLine();
+                if (i == 0) {
+                    dimension = WHITESPACE_SPLITTER.splitToList(row).size();
+                    entityVec = new EmbeddingTable(entityCount, dimension);
+                    Log.info("PTransEAddTest.run", "N=" + dimension);
+                }
                 Iterator<String> entries = WHITESPACE_SPLITTER.split(row).iterator();
-                for (int j = 0; j < PTransEAddTrain.N; j++) {
-                    entityVec[i][j] = Float.valueOf(entries.next());
+                for (int j = 0; j < dimension; j++) {
+                    entityVec.set(i, j, Float.valueOf(entries.next()));
                 }
 
                 if (entries.hasNext()) {
                     Log.error("PTransEAddTest.run", "Entity vector length mismatch on row " + i);
-                    return;
+                    return false;
                 }
             }
 
@@ -242,18 +506,18 @@ public class PTransEAddTest {
         }
 
         Log.info("Loading Relation Vector from " + PTransEAddTrain.RELATION2VEC_FILE + "...");
-        relationVec = new float[relationCount][PTransEAddTrain.N];
+        relationVec = new EmbeddingTable(relationCount, dimension);
         try (BufferedReader relationVecReader = FileTools.bufferedReader(PTransEAddTrain.RELATION2VEC_FILE)) {
             for (int i = 0; i < relationCount; i++) {
                 String row = relationVecReader.readLine();
                 Iterator<String> entries = WHITESPACE_SPLITTER.split(row).iterator();
-                for (int j = 0; j < PTransEAddTrain.N; j++) {
-                    relationVec[i][j] = Float.valueOf(entries.next());
+                for (int j = 0; j < dimension; j++) {
+                    relationVec.set(i, j, Float.valueOf(entries.next()));
                 }
 
                 if (entries.hasNext()) {
                     Log.error("PTransEAddTest.run", "Relation vector length mismatch");
-                    return;
+                    return false;
                 }
             }
 
@@ -261,70 +525,130 @@ public class PTransEAddTest {
                 Log.error("PTransEAddTest.run", "Relation vector count mismatch");
             }
         }
+        return true;
+    }
 
-        for (int headId = 0; headId < entityCount; headId++) {
-            String headDiffbotId = idToEntity.get(headId);
-            if (!headDiffbotId.startsWith("P")) {
-                continue;
-            }
+    private void run() throws IOException {
+        if (options.outputDirectory != null) {
+            runBatch();
+            return;
+        }
 
+        Inferrer inferrer = new Inferrer();
+        for (int headId : typeToIds.get(PERSON)) {
             // Infer skills
-            inferTail(headId, KGRelation.SKILL.ordinal());
+            inferTail(inferrer, headId, KGRelation.SKILL.ordinal());
 
             // Infer employment category
-            inferTail(headId, KGRelation.EMPLOYMENT_CATEGORY.ordinal());
+            inferTail(inferrer, headId, KGRelation.EMPLOYMENT_CATEGORY.ordinal());
 
             // Find similar
-            getSimilar(headId);
+            getSimilar(inferrer, headId);
         }
     }
 
-    private void inferTail(int headId, int relationId) {
-        List<Pair<Integer, Double>> candidateScores = new ArrayList<>();
-
-        // TODO: enforce entity type generically
-        String tailTypePrefix;
-        double minScore;
-        if (KGRelation.SKILL.ordinal() == relationId) {
-            tailTypePrefix = "S";
-            minScore = 90;
-        } else if (KGRelation.EMPLOYMENT_CATEGORY.ordinal() == relationId) {
-            tailTypePrefix = "RC";
-            minScore = 88;
-        } else {
-            throw new UnsupportedOperationException(
-                    "PTransEAddTest.inferTail does not support relationId " + relationId);
+    /**
+     * Loads the SimilarityIndex of the Persons from SIMILARITY_INDEX_FILE unless it is older than
+     * the entity vectors, else builds and saves it.
+     */
+    private void loadSimilarityIndex() throws IOException {
+        File indexFile = SIMILARITY_INDEX_FILE;
+        if (indexFile.lastModified() > PTransEAddTrain.ENTITY2VEC_FILE.lastModified()) {
+            Log.info("PTransEAddTest.loadSimilarityIndex", "Loading similarity index from " + indexFile + "...");
+            try {
+                SimilarityIndex index = SimilarityIndex.read(indexFile);
+                if (index.dimension == dimension) {
+                    similarityIndex = index;
+                    return;
+                }
+                Log.warn("PTransEAddTest.loadSimilarityIndex", indexFile + " has dimension " +
+                        index.dimension + ", rebuilding");
+            } catch (IOException e) {
+                Log.warn("PTransEAddTest.loadSimilarityIndex", "Rebuilding unreadable " + indexFile, e);
+            }
         }
 
-        for (int i = 0; i < entityCount; i++) {
-            String tailDiffbotId = idToEntity.get(i);
-            if (!tailDiffbotId.startsWith(tailTypePrefix)) {
-                continue;
-            }
+        Log.info("PTransEAddTest.loadSimilarityIndex", "Building similarity index...");
+        similarityIndex = SimilarityIndex.build(entityVec, typeToIds.get(PERSON), 0);
+        similarityIndex.write(indexFile);
+    }
 
-            double score = scoreTriple(headId, i, relationId, false);
-            if (score > minScore) {
-                candidateScores.add(new Pair<>(i, score));
-            }
+    /**
+     * Infers the tails and similar entities of every Person head in parallel. The heads are split
+     * into contiguous shards, each written by one task with its own Inferrer to
+     * inference-NNNNN.tsv in the output directory, with the rows
+     *     head id, relation name (or SIMILAR), candidate id, score, 1 if in train.txt else 0
+     * best candidate first.
+     */
+    private void runBatch() throws IOException {
+        int[] headIds = typeToIds.get(PERSON);
+        File directory = options.outputDirectory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        Log.info("PTransEAddTest.runBatch", "Inferring " + headIds.length + " heads into " +
+                options.shards + " shards in " + directory + " with " + options.threads + " threads...");
+
+        long startMs = System.currentTimeMillis();
+        AtomicInteger doneShards = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(options.threads);
+        try {
+            pool.submit(() -> IntStream.range(0, options.shards).parallel().forEach(shard -> {
+                File shardFile = new File(directory, String.format("inference-%05d.tsv", shard));
+                try (BufferedWriter writer = FileTools.bufferedWriter(shardFile)) {
+                    Inferrer inferrer = new Inferrer();
+                    int end = (int) ((shard + 1L) * headIds.length / options.shards);
+                    for (int i = (int) ((long) shard * headIds.length / options.shards); i < end; i++) {
+                        int headId = headIds[i];
+                        for (KGRelation relation : new KGRelation[] {KGRelation.SKILL, KGRelation.EMPLOYMENT_CATEGORY}) {
+                            inferrer.inferTail(headId, relation.ordinal());
+                            writeCandidates(writer, headId, relation.ordinal(), inferrer.topTails, GUESS_NUM);
+                        }
+                        inferrer.getSimilar(headId);
+                        writeCandidates(writer, headId, -1, inferrer.topSimilar, SIMILAR_NUM);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                Log.info("PTransEAddTest.runBatch", String.format("\tWrote %d of %d shards in %dms",
+                        doneShards.incrementAndGet(), options.shards, System.currentTimeMillis() - startMs));
+            })).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Batch inference failed", e);
+        } finally {
+            pool.shutdown();
         }
-        candidateScores.sort(Comparator.comparing(s -> s.second));
-        for (int i = candidateScores.size() - 1; i >= Math.max(candidateScores.size() - RERANK_NUM, 0); i--) {
-            candidateScores.get(i).second = scoreTriple(headId, candidateScores.get(i).first,
-                    relationId, true);
+    }
+
+    /**
+     * Writes the best count candidates, for the relation or SIMILAR if relationId is -1.
+     */
+    void writeCandidates(Writer writer, int headId, int relationId, TopK candidates,
+            int count) throws IOException {
+        String head = idToEntity.get(headId);
+        String relation = relationId < 0 ? SIMILAR : idToRelation.get(relationId);
+        for (int i = 0; i < Math.min(count, candidates.size()); i++) {
+            int tailId = candidates.id(i);
+            boolean inSample = relationId >= 0 &&
+                    trainingTriples.contains(headId + "-" + tailId + "-" + relationId);
+            writer.write(head + "\t" + relation + "\t" + idToEntity.get(tailId) + "\t" +
+                    candidates.score(i) + "\t" + (inSample ? 1 : 0) + "\n");
         }
-        candidateScores.sort(Comparator.comparing(s -> s.second));
+    }
+
+    private void inferTail(Inferrer inferrer, int headId, int relationId) {
+        inferrer.inferTail(headId, relationId);
+        TopK topTails = inferrer.topTails;
 
         List<String> results = Lists.newArrayList("Best guesses given http://localhost:9200/diffbot_entity/Person/" +
                 idToEntity.get(headId) + " and relation " + idToRelation.get(relationId) + ":");
         boolean outOfSampleExists = false;
-        for (int i = candidateScores.size() - 1; i >= 0; i--) {
-            boolean inSample = trainingTriples.contains(headId + "-" +
-                    candidateScores.get(i).first + "-" + relationId);
-            if (candidateScores.size() - i <= 8) {
-                outOfSampleExists |= !inSample;
-                results.add("\t" + getDiffbotName(candidateScores.get(i).first, relationId) + "\tscored\t" +
-                        candidateScores.get(i).second + (inSample ? "\t(in sample)" : ""));
-            }
+        for (int i = 0; i < Math.min(GUESS_NUM, topTails.size()); i++) {
+            int tailId = topTails.id(i);
+            boolean inSample = trainingTriples.contains(headId + "-" + tailId + "-" + relationId);
+            outOfSampleExists |= !inSample;
+            results.add("\t" + getDiffbotName(tailId, relationId) + "\tscored\t" +
+                    topTails.score(i) + (inSample ? "\t(in sample)" : ""));
         }
         if (outOfSampleExists && results.size() > 1) {
             Log.info("PTransEAddTest.inferTail", results.stream()
@@ -332,30 +656,15 @@ public class PTransEAddTest {
         }
     }
 
-    // TODO: enforce entity type (other than Person)
-    private void getSimilar(int headId) {
-        List<Pair<Integer, Double>> candidateScores = new ArrayList<>();
-        for (int i = 0; i < entityCount; i++) {
-            String tailDiffbotId = idToEntity.get(i);
-            if (headId == i || !tailDiffbotId.startsWith("P")) {
-                continue;
-            }
-
-            double similarity = scoreSimilarity(headId, i);
-            if (similarity > 95) {
-                candidateScores.add(new Pair<>(i, similarity));
-            }
-        }
-        candidateScores.sort(Comparator.comparing(s -> s.second));
+    private void getSimilar(Inferrer inferrer, int headId) {
+        inferrer.getSimilar(headId);
+        TopK topSimilar = inferrer.topSimilar;
 
         List<String> results = Lists.newArrayList("Similar entities to http://localhost:9200/diffbot_entity/Person/" +
                 idToEntity.get(headId));
-        for (int i = candidateScores.size() - 1; i >= 0; i--) {
-            if (candidateScores.size() - i <= 4) {
-                results.add("\thttp://localhost:9200/diffbot_entity/Person/" +
-                        idToEntity.get(candidateScores.get(i).first) + "\tscored\t" +
-                        candidateScores.get(i).second);
-            }
+        for (int i = 0; i < topSimilar.size(); i++) {
+            results.add("\thttp://localhost:9200/diffbot_entity/Person/" +
+                    idToEntity.get(topSimilar.id(i)) + "\tscored\t" + topSimilar.score(i));
         }
         if (results.size() > 1) {
             Log.info("PTransEAddTest", results.stream()
@@ -379,18 +688,21 @@ public class PTransEAddTest {
     }
 
     private double scoreSimilarity(int e1, int e2) {
+        float[] entities = entityVec.values;
+        int e1Offset = entityVec.offset(e1);
+        int e2Offset = entityVec.offset(e2);
         double sum = 0;
-        for (int j = 0; j < PTransEAddTrain.N; j++) {
-//            sum -= 10 * Math.abs(entityVec[e1][j] - entityVec[e2][j]);
-            sum += entityVec[e1][j] * entityVec[e2][j];
+        for (int j = 0; j < dimension; j++) {
+//            sum -= 10 * Math.abs(entities[e1Offset + j] - entities[e2Offset + j]);
+            sum += entities[e1Offset + j] * entities[e2Offset + j];
         }
 
-        double norm1 = PTransEAddTrain.l2Norm(entityVec[e1]);
+        double norm1 = entityNorms[e1];
         if (norm1 > 0) {
             sum /= norm1;
         }
 
-        double norm2 = PTransEAddTrain.l2Norm(entityVec[e2]);
+        double norm2 = entityNorms[e2];
         if (norm2 > 0) {
             sum /= norm2;
         }
@@ -398,15 +710,62 @@ public class PTransEAddTest {
         return 100 * sum;
     }
 
+    /**
+     * Returns the scores of scoreTriple without path boost for the first tailCount tails, scoring
+     * them as one batch: |t - h - r| is the distance from t to h + r, and |h - t - r'| for the
+     * inverse relation r' the distance from t to h - r'.
+     */
+    private float[] scoreTails(int headId, int relationId, int[] tailIds, int tailCount) {
+        int inverseRelationId = relationId + (relationCount / 2);
+        float[] query = new float[dimension];
+        float[] distances = new float[tailCount];
+        TransEKernel.query(entityVec, headId, relationVec, relationId, 1, query);
+        TransEKernel.addL1Distances(query, entityVec, tailIds, tailCount, distances);
+        TransEKernel.query(entityVec, headId, relationVec, inverseRelationId, -1, query);
+        TransEKernel.addL1Distances(query, entityVec, tailIds, tailCount, distances);
+        for (int i = 0; i < tailCount; i++) {
+            distances[i] = 100 - distances[i];
+        }
+        return distances;
+    }
+
+    /**
+     * Returns the scores of scoreTails for the tailCandidateIds of the relation of each of the first
+     * headCount heads. The batched kernel reads each candidate once for all the heads, instead of
+     * once per head.
+     */
+    float[][] scoreTails(int[] headIds, int headCount, int relationId) {
+        int[] tailIds = tailCandidateIds(relationId);
+        int inverseRelationId = relationId + (relationCount / 2);
+        float[][] queries = new float[headCount][dimension];
+        float[][] distances = new float[headCount][tailIds.length];
+        for (int i = 0; i < headCount; i++) {
+            TransEKernel.query(entityVec, headIds[i], relationVec, relationId, 1, queries[i]);
+        }
+        TransEKernel.addL1Distances(queries, headCount, entityVec, tailIds, tailIds.length, distances);
+        for (int i = 0; i < headCount; i++) {
+            TransEKernel.query(entityVec, headIds[i], relationVec, inverseRelationId, -1, queries[i]);
+        }
+        TransEKernel.addL1Distances(queries, headCount, entityVec, tailIds, tailIds.length, distances);
+        for (float[] headDistances : distances) {
+            for (int j = 0; j < tailIds.length; j++) {
+                headDistances[j] = 100 - headDistances[j];
+            }
+        }
+        return distances;
+    }
+
     private double scoreTriple(int e1, int e2, int rel, boolean pathBoost) {
         double sum = 100;
 
         int inverseRelationId = rel + (relationCount / 2);
 
-        for (int j = 0; j < PTransEAddTrain.N; j++) {
-            sum -= Math.abs(entityVec[e2][j] - entityVec[e1][j] - relationVec[rel][j]);
-            sum -= Math.abs(entityVec[e1][j] - entityVec[e2][j] - relationVec[inverseRelationId][j]);
-        }
+        float[] entities = entityVec.values;
+        float[] relations = relationVec.values;
+        sum -= TransEKernel.l1(entities, entityVec.offset(e2), entities, entityVec.offset(e1),
+                relations, relationVec.offset(rel), dimension);
+        sum -= TransEKernel.l1(entities, entityVec.offset(e1), entities, entityVec.offset(e2),
+                relations, relationVec.offset(inverseRelationId), dimension);
 
         if (pathBoost) {
             List<Pair<int[], Float>> path_list =
@@ -446,20 +805,11 @@ public class PTransEAddTest {
     }
 
     private double scorePath(int r1, int[] rel_path) {
-        double sum = 0;
-        for (int k = 0; k < PTransEAddTrain.N; k++) {
-            double tmp = relationVec[r1][k];
-            for (int j : rel_path) {
-                tmp -= relationVec[j][k];
-            }
-
-            sum -= Math.abs(tmp);
-        }
-        return sum;
+        return -TransEKernel.pathL1(relationVec, r1, rel_path);
     }
 
     public static void main(String[] args) throws Exception {
-        PTransEAddTest add = new PTransEAddTest();
+        PTransEAddTest add = new PTransEAddTest(Options.parse(args));
         add.test();
     }
 }
@@ -1,19 +1,24 @@
 package com.diffbot.ml;
 
-import com.diffbot.thoth.utilities.Triple;
 import com.diffbot.toolbox.FileTools;
 import com.diffbot.utils.Pair;
 import com.esotericsoftware.minlog.Log;
 import com.google.common.base.Splitter;
-import com.google.common.collect.Sets;
-import com.google.common.util.concurrent.AtomicDouble;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.DoubleAdder;
 import java.util.stream.IntStream;
 
 /**
@@ -23,55 +28,274 @@ import java.util.stream.IntStream;
  * Inputs (provided by Pcra):
  *     entity2id.txt
  *     relation2id.txt
- *     train_pra.txt
- *     confidence.txt
+ *     train_pra.bin (or train_pra.txt)
+ *     confidence.bin (or confidence.txt)
+ *     valid.txt (optional, for early stopping)
  *
  * Outputs:
  *     relation2vec.txt
  *     entity2vec.txt
  *
+ * Usage: PTransEAddTrain [--hogwild | --seed S [--threads N]] [--epochs N] [--dim N]
+ *     [--checkpoint-every N] [--resume] [--optimizer sgd|adagrad|adam] [--learning-rate R]
+ *     [--validate-every N] [--patience N]
+ *
  * TODO: port to Spark/Tensorflow
  */
 public class PTransEAddTrain {
     private static final DecimalFormat DECIMAL_FORMAT = new DecimalFormat("#0.000000");
     private static final Splitter WHITESPACE_SPLITTER = Splitter.onPattern("\\s+").trimResults().omitEmptyStrings();
-    // TODO: tune rate for Diffbot KG
-    private static final float INITIAL_LEARNING_RATE = 0.02f;
     private static final float MARGIN = 1f;
     private static final int BATCH_COUNT = 64; // this should be divisible by number of threads
     private static final int EPOCHS = 1000;
+    private static final int VALIDATION_SAMPLES = 1000;
+    private static final float MIN_PATH_CONFIDENCE = 0.01f;
+    private static final int INSTANCE_OF = KGRelation.INSTANCE_OF.ordinal();
+    private static final int INVERSE_INSTANCE_OF = INSTANCE_OF + KGRelation.values().length;
 
-    /**
-     * The degree of the latent feature space.
-     */
-    static final int N = 50;
+    private static final int DEFAULT_DIMENSION = 50;
     static final File ENTITY2VEC_FILE = new File(KGCompletion.KB2E_DIRECTORY, "entity2vec.txt");
     static final File RELATION2VEC_FILE = new File(KGCompletion.KB2E_DIRECTORY, "relation2vec.txt");
 
+    static class Options {
+        /**
+         * Update the embeddings in place without locks (Hogwild), accepting racy updates, instead of
+         * locking the rows of each update and copying the embeddings after each batch.
+         */
+        boolean hogwild = false;
+        int epochs = EPOCHS;
+        /**
+         * The degree of the latent feature space.
+         */
+        int dimension = DEFAULT_DIMENSION;
+        /**
+         * Train deterministically from this seed, see learnBatchDeterministically, or null.
+         */
+        Long seed = null;
+        /**
+         * The number of partitions of each batch in deterministic mode, which the same run has to
+         * reuse to reproduce the same embeddings.
+         */
+        int threads = Runtime.getRuntime().availableProcessors();
+        /**
+         * Write a TrainingCheckpoint every this many epochs, or never if 0.
+         */
+        int checkpointEvery = 10;
+        /**
+         * Continue from the latest valid checkpoint instead of initializing the embeddings.
+         */
+        boolean resume = false;
+        /**
+         * The Optimizer of the embeddings. Only sgd halves its learning rate on a schedule, the
+         * adaptive optimizers scale their steps themselves.
+         */
+        String optimizer = Optimizer.SGD;
+        /**
+         * The initial learning rate, or null for the default of the optimizer.
+         */
+        Float learningRate = null;
+        /**
+         * Validate every this many epochs on a sample of valid.txt, or never if 0.
+         */
+        int validateEvery = 10;
+        /**
+         * Stop after this many validations without improvement, see EarlyStopping.
+         */
+        int patience = 5;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--hogwild":
+                        options.hogwild = true;
+                        break;
+                    case "--epochs":
+                        options.epochs = Integer.parseInt(args[++i]);
+                        break;
+                    case "--dim":
+                        options.dimension = Integer.parseInt(args[++i]);
+                        break;
+                    case "--seed":
+                        options.seed = Long.parseLong(args[++i]);
+                        break;
+                    case "--threads":
+                        options.threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--checkpoint-every":
+                        options.checkpointEvery = Integer.parseInt(args[++i]);
+                        break;
+                    case "--resume":
+                        options.resume = true;
+                        break;
+                    case "--optimizer":
+                        options.optimizer = args[++i];
+                        // Fail on an unknown optimizer before loading anything
+                        Optimizer.defaultLearningRate(options.optimizer);
+                        break;
+                    case "--learning-rate":
+                        options.learningRate = Float.parseFloat(args[++i]);
+                        break;
+                    case "--validate-every":
+                        options.validateEvery = Integer.parseInt(args[++i]);
+                        break;
+                    case "--patience":
+                        options.patience = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument " + args[i]);
+                }
+            }
+            if (options.hogwild && options.seed != null) {
+                throw new IllegalArgumentException("--hogwild updates race, so it can't be seeded");
+            }
+            return options;
+        }
+    }
+
+    private final Options options;
     private int entityCount = 0;
     private int relationCount = 0;
     private Map<Character, List<Integer>> typeToIds = new HashMap<>();
-    private Map<Integer, Character> idToType = new HashMap<>();
     private Map<String, Integer> entityToId = new HashMap<>();
+    private Map<String, Integer> relationToId = new HashMap<>();
     private List<Character> types = new ArrayList<>();
     private List<Integer> headIds = new ArrayList<>();
     private List<Integer> tailIds = new ArrayList<>();
     private List<Integer> relationIds = new ArrayList<>();
-    private List<List<Pair<int[], Float>>> pathResources = new ArrayList<>();
-    private Map<Pair<int[], Integer>, Float> pathConfidences = new HashMap<>();
+    // Every distinct relation path gets an id: pathIds maps the path, packed by RelationPaths, to
+    // its id + 1, and paths holds the relations of each id
+    private LongIntHashMap pathIds = new LongIntHashMap();
+    private List<int[]> paths = new ArrayList<>();
+    // the paths of the labels by path id, in order: the paths of a label end at its labelPathEnds
+    private int[] labelPathIds = new int[16];
+    private float[] labelPathResources = new float[16];
+    private int labelPathCount = 0;
+    private List<Integer> labelPathEnds = new ArrayList<>();
+    // the confidence of path id p for relation r at p * relationCount + r, at least
+    // MIN_PATH_CONFIDENCE once indexLabels has run
+    private float[] pathConfidences = new float[16];
+    // {headId, relationId, tailId} of a sample of valid.txt
+    private List<int[]> validationTriples = new ArrayList<>();
+
+    // The labels indexed by indexLabels for sampling without allocation: the triples of the
+    // labels, and for each head a sorted run in positiveKeys of relationId << 32 | tailId for
+    // every positive triple of the head, starting at headPositiveStart[headId]
+    private int[] labelHeadIds;
+    private int[] labelTailIds;
+    private int[] labelRelationIds;
+    private int[] headPositiveStart;
+    private long[] positiveKeys;
+    // the paths of label i are labelPathIds[labelPathStart[i]] until labelPathStart[i + 1]
+    private int[] labelPathStart;
+    private int[][] pathRelations;
+    // the index of each entity's type in types, and the entities of each type
+    private int[] entityTypes;
+    private int[][] typeEntities;
+
+    private final ThreadLocal<SplittableRandom> random;
+
+    private float learningRate;
+    private int completedEpochs = 0;
+    private final ExecutorService checkpointExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "PTransEAddTrain-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // the checkpoint being written, if any
+    private Future<?> pendingCheckpoint = null;
+    private DoubleAdder epochError;
+    private EmbeddingTable entityTmp;
+    private EmbeddingTable entityVec;
+    private EmbeddingTable relationTmp;
+    private EmbeddingTable relationVec;
+    // rows of entityTmp and relationTmp updated in the current batch
+    private DirtyRows dirtyEntities;
+    private DirtyRows dirtyRelations;
+    // apply the updates to entityTmp and relationTmp, created by learn unless resumed
+    private Optimizer entityOptimizer;
+    private Optimizer relationOptimizer;
+    private final ThreadLocal<float[]> gradient;
 
     /**
-     * A map of Pair<headId, relationId> -> Set<tailId> where every headId, readId, tailId triple
-     * implies a positive label.
+     * The rows of an embedding matrix updated since the last copy, so that copying the updates of
+     * a batch costs in proportion to the batch rather than to the matrix.
      */
-    private Map<Pair<Integer, Integer>, Set<Integer>> positiveTriples = new HashMap<>();
+    private static class DirtyRows {
+        private final AtomicIntegerArray marked;
+        private final int[] rows;
+        private final AtomicInteger size = new AtomicInteger();
+
+        DirtyRows(int rowCount) {
+            marked = new AtomicIntegerArray(rowCount);
+            rows = new int[rowCount];
+        }
+
+        void mark(int row) {
+            if (marked.get(row) == 0 && marked.compareAndSet(row, 0, 1)) {
+                rows[size.getAndIncrement()] = row;
+            }
+        }
 
-    private float learningRate = INITIAL_LEARNING_RATE;
-    private AtomicDouble epochError;
-    private float[][] entityTmp;
-    private float[][] entityVec;
-    private float[][] relationTmp;
-    private float[][] relationVec;
+        /**
+         * Copies the marked rows of from into to, and clears the marks.
+         */
+        void copy(EmbeddingTable from, EmbeddingTable to) {
+            for (int i = 0; i < size.get(); i++) {
+                int row = rows[i];
+                from.copyRow(row, to);
+                marked.set(row, 0);
+            }
+            size.set(0);
+        }
+    }
+
+    /**
+     * The updates of one partition of a batch in deterministic mode, in the order they were made.
+     * A triple update has a null path, a path update has no head or tail.
+     */
+    private static class UpdateLog {
+        private int size = 0;
+        private int[] headIds = new int[16];
+        private int[] relationIds = new int[16];
+        private int[] tailIds = new int[16];
+        private int[][] paths = new int[16][];
+        private double[] deltas = new double[16];
+
+        void add(int headId, int relationId, int tailId, int[] path, double delta) {
+            if (size == deltas.length) {
+                headIds = Arrays.copyOf(headIds, 2 * size);
+                relationIds = Arrays.copyOf(relationIds, 2 * size);
+                tailIds = Arrays.copyOf(tailIds, 2 * size);
+                paths = Arrays.copyOf(paths, 2 * size);
+                deltas = Arrays.copyOf(deltas, 2 * size);
+            }
+            headIds[size] = headId;
+            relationIds[size] = relationId;
+            tailIds[size] = tailId;
+            paths[size] = path;
+            deltas[size++] = delta;
+        }
+
+        void clear() {
+            Arrays.fill(paths, 0, size, null);
+            size = 0;
+        }
+    }
+
+    PTransEAddTrain(Options options) {
+        this.options = options;
+        learningRate = options.learningRate != null ? options.learningRate :
+                Optimizer.defaultLearningRate(options.optimizer);
+        gradient = ThreadLocal.withInitial(() -> new float[options.dimension]);
+        SplittableRandom seedRandom = options.seed != null ? new SplittableRandom(options.seed) :
+                new SplittableRandom();
+        random = ThreadLocal.withInitial(() -> {
+            synchronized (seedRandom) {
+                return seedRandom.split();
+            }
+        });
+    }
 
     public void train() throws IOException {
         prepare();
@@ -79,103 +303,334 @@ public class PTransEAddTrain {
     }
 
     private void run() throws IOException {
-        Log.info("PTransEAddTrain.run", "N=" + N);
-        double range = 6 / Math.sqrt(N);
+        TrainingCheckpoint checkpoint = options.resume ?
+                TrainingCheckpoint.readLatest(TrainingCheckpoint.CHECKPOINT_DIRECTORY) : null;
+        if (checkpoint != null) {
+            resume(checkpoint);
+        } else {
+            initialize();
+        }
+        learn();
+        writeRelationVec();
+        writeEntityVec();
+    }
 
-        entityVec = new float[entityCount][N];
+    /**
+     * Initializes the embeddings uniformly at random.
+     */
+    void initialize() {
+        int n = options.dimension;
+        Log.info("PTransEAddTrain.initialize", "N=" + n);
+        double range = 6 / Math.sqrt(n);
+        SplittableRandom random = options.seed != null ? new SplittableRandom(options.seed) :
+                new SplittableRandom();
+
+        entityVec = new EmbeddingTable(entityCount, n);
         for (int i = 0; i < entityCount; i++) {
-            for (int j = 0; j < N; j++) {
-                entityVec[i][j] = (float) uniform(-range, range);
+            for (int j = 0; j < n; j++) {
+                entityVec.set(i, j, (float) uniform(-range, range, random));
             }
-            normalizeL2(entityVec[i]);
+            entityVec.normalizeL2(i);
         }
 
-        relationVec = new float[relationCount][N];
+        relationVec = new EmbeddingTable(relationCount, n);
         for (int i = 0; i< relationCount; i++) {
-            for (int j = 0; j < N; j++) {
-                relationVec[i][j] = (float) uniform(-range, range);
+            for (int j = 0; j < n; j++) {
+                relationVec.set(i, j, (float) uniform(-range, range, random));
             }
-            normalizeL2(relationVec[i]);
+            relationVec.normalizeL2(i);
         }
+    }
 
-        learn();
-        writeRelationVec();
-        writeEntityVec();
+    private void resume(TrainingCheckpoint checkpoint) {
+        if (checkpoint.entityVec.rowCount != entityCount || checkpoint.relationVec.rowCount != relationCount ||
+                checkpoint.entityVec.dimension != options.dimension) {
+            throw new IllegalStateException(String.format("Checkpoint of %d entities and %d relations in "
+                    + "%d dimensions doesn't match %d entities and %d relations in %d dimensions",
+                    checkpoint.entityVec.rowCount, checkpoint.relationVec.rowCount,
+                    checkpoint.entityVec.dimension, entityCount, relationCount, options.dimension));
+        }
+        entityVec = checkpoint.entityVec;
+        relationVec = checkpoint.relationVec;
+        learningRate = checkpoint.learningRate;
+        completedEpochs = checkpoint.epoch;
+        if (checkpoint.entityOptimizer != null &&
+                checkpoint.entityOptimizer.name().equals(options.optimizer)) {
+            entityOptimizer = checkpoint.entityOptimizer;
+            relationOptimizer = checkpoint.relationOptimizer;
+        } else {
+            Log.warn("PTransEAddTrain.resume", "Checkpoint has no " + options.optimizer +
+                    " state, starting it afresh");
+        }
+        Log.info("PTransEAddTrain.resume", "Resuming after epoch " + completedEpochs +
+                ", learningRate=" + learningRate);
+    }
+
+    /**
+     * Snapshots the embeddings and writes them on the background thread, so that training only
+     * waits for the copy. At most one checkpoint is written at a time.
+     */
+    private void checkpoint() {
+        awaitCheckpoint();
+        TrainingCheckpoint checkpoint = new TrainingCheckpoint(completedEpochs, learningRate,
+                entityVec.copy(), relationVec.copy(), entityOptimizer.copy(), relationOptimizer.copy());
+        pendingCheckpoint = checkpointExecutor.submit(() -> {
+            checkpoint.write(TrainingCheckpoint.CHECKPOINT_DIRECTORY);
+            return null;
+        });
+    }
+
+    private void awaitCheckpoint() {
+        if (pendingCheckpoint == null) {
+            return;
+        }
+        try {
+            pendingCheckpoint.get();
+        } catch (ExecutionException e) {
+            // Training can go on, the next checkpoint may succeed
+            Log.error("PTransEAddTrain.checkpoint", "Failed to write checkpoint", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pendingCheckpoint = null;
     }
 
-    private void learn() throws IOException {
+    void learn() {
         long startMs = System.currentTimeMillis();
-        Log.info("PTransEAddTrain.learn", "margin=" + MARGIN);
-        int batchSize = headIds.size() / BATCH_COUNT;
+        Log.info("PTransEAddTrain.learn", "margin=" + MARGIN + ", hogwild=" + options.hogwild +
+                ", seed=" + options.seed + ", optimizer=" + options.optimizer);
+        indexLabels();
+        if (entityOptimizer == null) {
+            entityOptimizer = Optimizer.create(options.optimizer, entityCount, options.dimension);
+            relationOptimizer = Optimizer.create(options.optimizer, relationCount, options.dimension);
+        }
+        int batchSize = labelHeadIds.length / BATCH_COUNT;
 
-        relationTmp = deepCopy(relationVec);
-        entityTmp = deepCopy(entityVec);
+        if (options.hogwild) {
+            // Updates are read back immediately, so there is nothing to copy between batches
+            relationTmp = relationVec;
+            entityTmp = entityVec;
+        } else {
+            relationTmp = relationVec.copy();
+            entityTmp = entityVec.copy();
+            dirtyRelations = new DirtyRows(relationCount);
+            dirtyEntities = new DirtyRows(entityCount);
+        }
+        // in deterministic mode, the sample streams are split in order from one seeded stream
+        SplittableRandom seedRandom = options.seed != null ? new SplittableRandom(options.seed) : null;
+        UpdateLog[] updateLogs = new UpdateLog[options.seed != null ? options.threads : 0];
+        for (int i = 0; i < updateLogs.length; i++) {
+            updateLogs[i] = new UpdateLog();
+        }
+        // Skip the streams of the epochs a resumed run has already done, to stay deterministic
+        for (long i = 0; seedRandom != null && i < (long) completedEpochs * BATCH_COUNT * updateLogs.length; i++) {
+            seedRandom.split();
+        }
+        EarlyStopping earlyStopping = options.validateEvery > 0 && !validationTriples.isEmpty() ?
+                new EarlyStopping(options.patience, this::validate) : null;
 
-        for (int epoch = 0; epoch < EPOCHS; epoch++) {
-            epochError = new AtomicDouble();
-            if (epoch % (EPOCHS / 8) == 0) {
-                if (epoch > 0) {
+        for (int epoch = completedEpochs; epoch < options.epochs; epoch++) {
+            epochError = new DoubleAdder();
+            if (epoch % Math.max(1, options.epochs / 8) == 0) {
+                if (epoch > 0 && options.optimizer.equals(Optimizer.SGD)) {
                     learningRate /= 2;
                 }
                 Log.info("PTransEAddTrain.learn", "learningRate=" + learningRate);
             }
 
             for (int batch = 0; batch < BATCH_COUNT; batch++) {
-                IntStream.range(0, batchSize).parallel().forEach(k -> {
-                    int i = randMax(headIds.size());
-
-                    int headId = headIds.get(i);
-                    int tailId = tailIds.get(i);
-                    int relationId = relationIds.get(i);
-
-                    // For every positive label, generate a negative label through corruption
-                    Triple<Integer, Integer, Integer> corruptTriple =
-                            corruptTriple(headId, relationId, tailId);
-                    int corruptHeadId = corruptTriple.first;
-                    int corruptRelationId = corruptTriple.second;
-                    int corruptTailId = corruptTriple.third;
-
-                    trainKb(headId, relationId, tailId, corruptHeadId, corruptRelationId, corruptTailId);
-
-                    Set<Integer> modifiedRelationIds = Sets.newHashSet(relationId, corruptRelationId);
-                    if (!pathResources.get(i).isEmpty()) {
-                        int corruptPathRelationId = randMax(relationCount);
-                        while (positiveTripleExists(new Pair<>(headId, corruptPathRelationId), tailId)) {
-                            corruptPathRelationId = randMax(relationCount);
-                        }
-
-                        for (Pair<int[], Float> pathConfidencePair : pathResources.get(i)) {
-                            int[] path = pathConfidencePair.first;
-                            double pathResource = pathConfidencePair.second;
-                            Arrays.stream(path).forEach(modifiedRelationIds::add);
+                if (options.seed != null) {
+                    learnBatchDeterministically(batchSize, seedRandom, updateLogs);
+                } else {
+                    IntStream.range(0, batchSize).parallel().forEach(k -> {
+                        SplittableRandom random = this.random.get();
+                        trainSample(random.nextInt(labelHeadIds.length), random, null);
+                    });
+                }
 
-                            float pathConfidence = Math.max(0.01f, pathConfidences.getOrDefault(
-                                    new Pair<>(path, relationId), 0f));
-                            trainPath(relationId, corruptPathRelationId, path,
-                                    2 * MARGIN, pathResource * pathConfidence);
-                        }
-                    }
-                });
+                if (!options.hogwild) {
+                    // The rows that weren't updated are still equal in both copies
+                    dirtyRelations.copy(relationTmp, relationVec);
+                    dirtyEntities.copy(entityTmp, entityVec);
+                }
+            }
 
-                relationVec = deepCopy(relationTmp);
-                entityVec = deepCopy(entityTmp);
+            completedEpochs = epoch + 1;
+            if (options.checkpointEvery > 0 && completedEpochs % options.checkpointEvery == 0) {
+                checkpoint();
+            }
+            if (earlyStopping != null && completedEpochs % options.validateEvery == 0 &&
+                    earlyStopping.validate(completedEpochs, entityVec, relationVec)) {
+                break;
             }
 
             if (epoch % 10 == 0) {
                 Log.info("PTransEAddTrain.learn",
-                        "epoch " + epoch + "/" + EPOCHS + ", epochError=" +
-                                epochError.get() + ", time=" +
+                        "epoch " + epoch + "/" + options.epochs + ", epochError=" +
+                                epochError.sum() + ", time=" +
                                 (System.currentTimeMillis() - startMs) + "ms");
             }
         }
+        awaitCheckpoint();
+
+        if (earlyStopping != null) {
+            if (completedEpochs == options.epochs && completedEpochs % options.validateEvery != 0) {
+                // Let the final embeddings compete with the best validated ones
+                earlyStopping.validate(completedEpochs, entityVec, relationVec);
+            }
+            earlyStopping.finish();
+            if (earlyStopping.best() != null) {
+                Log.info("PTransEAddTrain.learn", "Keeping the embeddings of epoch " +
+                        earlyStopping.bestEpoch() + ", " + earlyStopping.best());
+                entityVec = earlyStopping.bestEntityVec();
+                relationVec = earlyStopping.bestRelationVec();
+            }
+        }
+    }
+
+    /**
+     * Returns the filtered MRR and hits@10 of the validation triples: the tail of each triple is
+     * ranked among the entities of its type, and so is its head through the inverse relation,
+     * scored as in PTransEAddTest.scoreTails. Candidates that form a training triple with the head
+     * and relation don't count against the rank.
+     *
+     * Runs on the EarlyStopping thread, so it only reads the snapshots and the label index.
+     */
+    private EarlyStopping.Metrics validate(EmbeddingTable entities, EmbeddingTable relations) {
+        int inverseOffset = relationCount / 2;
+        int maxTypeSize = 0;
+        for (int[] candidates : typeEntities) {
+            maxTypeSize = Math.max(maxTypeSize, candidates.length);
+        }
+        float[] query = new float[options.dimension];
+        float[] distances = new float[maxTypeSize];
+
+        double reciprocalRanks = 0;
+        int hitsAt10 = 0;
+        for (int[] triple : validationTriples) {
+            int headId = triple[0];
+            int relationId = triple[1];
+            int tailId = triple[2];
+            for (int rank : new int[] {
+                    rank(headId, relationId, relationId + inverseOffset, tailId, entities, relations,
+                            query, distances),
+                    rank(tailId, relationId + inverseOffset, relationId, headId, entities, relations,
+                            query, distances)}) {
+                reciprocalRanks += 1.0 / rank;
+                hitsAt10 += rank <= 10 ? 1 : 0;
+            }
+        }
+        int ranked = 2 * validationTriples.size();
+        return new EarlyStopping.Metrics(reciprocalRanks / ranked, hitsAt10 / (double) ranked);
+    }
+
+    private int rank(int headId, int relationId, int inverseRelationId, int tailId, EmbeddingTable entities,
+            EmbeddingTable relations, float[] query, float[] distances) {
+        int[] candidates = typeEntities[entityTypes[tailId]];
+        Arrays.fill(distances, 0, candidates.length, 0);
+        TransEKernel.query(entities, headId, relations, relationId, 1, query);
+        TransEKernel.addL1Distances(query, entities, candidates, candidates.length, distances);
+        TransEKernel.query(entities, headId, relations, inverseRelationId, -1, query);
+        TransEKernel.addL1Distances(query, entities, candidates, candidates.length, distances);
+
+        float tailDistance = 0;
+        for (int i = 0; i < candidates.length; i++) {
+            if (candidates[i] == tailId) {
+                tailDistance = distances[i];
+                break;
+            }
+        }
+        int rank = 1;
+        for (int i = 0; i < candidates.length; i++) {
+            if (distances[i] < tailDistance && !positiveTripleExists(headId, relationId, candidates[i])) {
+                rank++;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Trains on one sample, a random positive label. Its updates are applied right away, or added
+     * to log if there is one.
+     */
+    private void trainSample(int i, SplittableRandom random, UpdateLog log) {
+        int headId = labelHeadIds[i];
+        int tailId = labelTailIds[i];
+        int relationId = labelRelationIds[i];
+
+        // For every positive label, generate a negative label through corruption
+        int corruptHeadId = headId;
+        int corruptRelationId = relationId;
+        int corruptTailId = tailId;
+        double corruption = random.nextDouble();
+        if (corruption < 0.3) {
+            corruptHeadId = corruptHead(headId, relationId, tailId, random);
+        } else if (corruption < 0.6) {
+            corruptTailId = corruptTail(headId, relationId, tailId, random);
+        } else {
+            corruptRelationId = corruptRelation(headId, tailId, random);
+        }
+
+        trainKb(headId, relationId, tailId, corruptHeadId, corruptRelationId, corruptTailId, log);
+
+        if (labelPathStart[i] < labelPathStart[i + 1]) {
+            int corruptPathRelationId = corruptRelation(headId, tailId, random);
+
+            for (int p = labelPathStart[i]; p < labelPathStart[i + 1]; p++) {
+                int pathId = labelPathIds[p];
+                double pathResource = labelPathResources[p];
+
+                float pathConfidence = pathConfidences[pathId * relationCount + relationId];
+                trainPath(relationId, corruptPathRelationId, pathRelations[pathId],
+                        2 * MARGIN, pathResource * pathConfidence, log);
+            }
+        }
+    }
+
+    /**
+     * Trains on a batch such that the embeddings only depend on the seed and the number of
+     * threads, not on the scheduling of the threads.
+     *
+     * The batch is split into a fixed partition per thread, each with its own random stream. The
+     * partitions only read entityVec and relationVec, which don't change during the batch, and log
+     * their updates. The logs are then applied in partition order, in parallel over the rows: each
+     * thread applies the updates of the rows it owns, so every row sees its updates in the same
+     * order on every run.
+     */
+    private void learnBatchDeterministically(int batchSize, SplittableRandom seedRandom,
+            UpdateLog[] updateLogs) {
+        int partitions = updateLogs.length;
+        SplittableRandom[] randoms = new SplittableRandom[partitions];
+        for (int p = 0; p < partitions; p++) {
+            randoms[p] = seedRandom.split();
+        }
+        IntStream.range(0, partitions).parallel().forEach(p -> {
+            updateLogs[p].clear();
+            for (int k = p * batchSize / partitions; k < (p + 1) * batchSize / partitions; k++) {
+                trainSample(randoms[p].nextInt(labelHeadIds.length), randoms[p], updateLogs[p]);
+            }
+        });
+        IntStream.range(0, partitions).parallel().forEach(owner -> {
+            for (UpdateLog log : updateLogs) {
+                for (int i = 0; i < log.size; i++) {
+                    if (log.paths[i] == null) {
+                        applyOwnedTripleUpdate(log.headIds[i], log.relationIds[i], log.tailIds[i],
+                                log.deltas[i], owner, partitions);
+                    } else {
+                        applyOwnedRelationUpdate(log.relationIds[i], log.paths[i], log.deltas[i],
+                                owner, partitions);
+                    }
+                }
+            }
+        });
     }
 
     private void writeRelationVec() throws IOException {
         try (BufferedWriter relationVecWriter = FileTools.bufferedWriter(RELATION2VEC_FILE)) {
             for (int i = 0; i < relationCount; i++) {
-                normalizeL2(relationVec[i]);
-                for (int j = 0; j < N; j++) {
-                    relationVecWriter.write(DECIMAL_FORMAT.format(relationVec[i][j]) + "\t");
+                relationVec.normalizeL2(i);
+                for (int j = 0; j < options.dimension; j++) {
+                    relationVecWriter.write(DECIMAL_FORMAT.format(relationVec.get(i, j)) + "\t");
                 }
                 relationVecWriter.write("\n");
             }
@@ -185,9 +640,9 @@ public class PTransEAddTrain {
     private void writeEntityVec() throws IOException {
         try (BufferedWriter entityVecWriter = FileTools.bufferedWriter(ENTITY2VEC_FILE)) {
             for (int i = 0; i < entityCount; i++) {
-                normalizeL2(entityVec[i]);
-                for (int j = 0; j < N; j++) {
-                    entityVecWriter.write(DECIMAL_FORMAT.format(entityVec[i][j]) + "\t");
+                entityVec.normalizeL2(i);
+                for (int j = 0; j < options.dimension; j++) {
+                    entityVecWriter.write(DECIMAL_FORMAT.format(entityVec.get(i, j)) + "\t");
                 }
                 entityVecWriter.write("\n");
             }
@@ -195,111 +650,216 @@ public class PTransEAddTrain {
     }
 
     /**
-     * Generates a negative label by corrupting the provided positive label by randomly changing one
-     * of {headId, relationId, tailId} such that the new triple is not in the positive label set.
+     * Generates a negative label by corrupting the head of the provided positive label such that
+     * the new triple is (most likely) not in the positive label set. The learning loop picks one of
+     * corruptHead, corruptTail and corruptRelation at random.
      */
-    private Triple<Integer, Integer, Integer> corruptTriple(int headId, int relationId, int tailId) {
-        double tmp = Math.random();
-        if (tmp < 0.3) {
-            // Corrupt the head entity
-            int corruptEntityId = corruptEntity(headId, relationId);
-            int i = 0;
-            while (positiveTripleExists(new Pair<>(corruptEntityId, relationId), tailId)) {
-                corruptEntityId = corruptEntity(headId, relationId);
-                i++;
-                if (i > 8) {
-                    break;
-                }
+    private int corruptHead(int headId, int relationId, int tailId, SplittableRandom random) {
+        int corruptEntityId = corruptEntity(headId, relationId, random);
+        int i = 0;
+        while (positiveTripleExists(corruptEntityId, relationId, tailId)) {
+            corruptEntityId = corruptEntity(headId, relationId, random);
+            i++;
+            if (i > 8) {
+                break;
             }
+        }
+        return corruptEntityId;
+    }
 
-            return new Triple<>(corruptEntityId, relationId, tailId);
-        } else if (tmp < 0.6) {
-            // Corrupt the tail entity
-            int corruptEntityId = corruptEntity(tailId, relationId);
-            Pair<Integer, Integer> key = new Pair<>(headId, relationId);
-            int i = 0;
-            while (positiveTripleExists(key, corruptEntityId)) {
-                corruptEntityId = corruptEntity(tailId, relationId);
-                i++;
-                if (i > 8) {
-                    break;
-                }
-            }
-            return new Triple<>(headId, relationId, corruptEntityId);
-        } else {
-            // Corrupt the relation
-            int corruptRelationId = randMax(relationCount);
-            while (positiveTripleExists(new Pair<>(headId, corruptRelationId), tailId)) {
-                corruptRelationId = randMax(relationCount);
+    private int corruptTail(int headId, int relationId, int tailId, SplittableRandom random) {
+        int corruptEntityId = corruptEntity(tailId, relationId, random);
+        int i = 0;
+        while (positiveTripleExists(headId, relationId, corruptEntityId)) {
+            corruptEntityId = corruptEntity(tailId, relationId, random);
+            i++;
+            if (i > 8) {
+                break;
             }
-            return new Triple<>(headId, corruptRelationId, tailId);
         }
+        return corruptEntityId;
+    }
+
+    private int corruptRelation(int headId, int tailId, SplittableRandom random) {
+        int corruptRelationId = random.nextInt(relationCount);
+        while (positiveTripleExists(headId, corruptRelationId, tailId)) {
+            corruptRelationId = random.nextInt(relationCount);
+        }
+        return corruptRelationId;
     }
 
     /**
      * Returns another entity with the same type (unless the relaionId corresponds to
      * KGRelation.INSTANCE_OF.
      */
-    private int corruptEntity(int entityId, int relationId) {
-        char type = idToType.get(entityId);
-        if (relationId == KGRelation.INSTANCE_OF.ordinal() ||
-                relationId == (KGRelation.INSTANCE_OF.ordinal() + KGRelation.values().length)) {
-            while (type == idToType.get(entityId)) {
-                type = types.get(randMax(types.size()));
+    private int corruptEntity(int entityId, int relationId, SplittableRandom random) {
+        int type = entityTypes[entityId];
+        if (relationId == INSTANCE_OF || relationId == INVERSE_INSTANCE_OF) {
+            while (type == entityTypes[entityId]) {
+                type = random.nextInt(typeEntities.length);
             }
         }
 
-        List<Integer> typeEntities = typeToIds.get(type);
-        return typeEntities.get(randMax(typeEntities.size()));
+        int[] entities = typeEntities[type];
+        return entities[random.nextInt(entities.length)];
+    }
+
+    private boolean positiveTripleExists(int headId, int relationId, int tailId) {
+        return Arrays.binarySearch(positiveKeys, headPositiveStart[headId], headPositiveStart[headId + 1],
+                positiveKey(relationId, tailId)) >= 0;
     }
 
-    private boolean positiveTripleExists(Pair<Integer, Integer> key, int tailId) {
-        return positiveTriples.containsKey(key) && positiveTriples.get(key).contains(tailId);
+    private static long positiveKey(int relationId, int tailId) {
+        return (long) relationId << 32 | tailId;
     }
 
     /**
      * Attempts to minimize the difference between highly correlated relations and composed paths.
      */
     private void trainPath(int relationId, int corruptRelationId, int[] path, double margin,
-            double delta) {
+            double delta, UpdateLog log) {
         double trainError = evalPath(relationId, path);
         double corruptError = evalPath(corruptRelationId, path);
         if (trainError + margin > corruptError) {
-            epochError.addAndGet(delta * (margin + trainError - corruptError));
-            updateRelation(relationId, path, -delta);
-            updateRelation(corruptRelationId, path, delta);
+            epochError.add(delta * (margin + trainError - corruptError));
+            updateRelation(relationId, path, -delta, log);
+            updateRelation(corruptRelationId, path, delta, log);
         }
     }
 
     private double evalPath(int r1, int[] rel_path) {
-        double error = 0;
-        for (int k = 0; k < N; k++) {
-            double tmp = relationVec[r1][k];
-            for (int j : rel_path) {
-                tmp -= relationVec[j][k];
+        return TransEKernel.pathL1(relationVec, r1, rel_path);
+    }
+
+    /**
+     * Sets gradient to the relation minus the relations of the path, read from relationVec.
+     */
+    private void pathResidual(int r1, int[] rel_path, float[] gradient) {
+        float[] relations = relationVec.values;
+        int r1Offset = relationVec.offset(r1);
+        for (int k = 0; k < options.dimension; k++) {
+            gradient[k] = relations[r1Offset + k];
+        }
+        for (int path : rel_path) {
+            int pathOffset = relationVec.offset(path);
+            for (int k = 0; k < options.dimension; k++) {
+                gradient[k] -= relations[pathOffset + k];
             }
+        }
+    }
 
-            error += Math.abs(tmp);
+    /**
+     * Sets gradient to tail - head - relation, read from entityVec and relationVec.
+     */
+    private void tripleResidual(int headId, int relationId, int tailId, float[] gradient) {
+        float[] entities = entityVec.values;
+        float[] relations = relationVec.values;
+        int headOffset = entityVec.offset(headId);
+        int tailOffset = entityVec.offset(tailId);
+        int relationOffset = relationVec.offset(relationId);
+        for (int j = 0; j < options.dimension; j++) {
+            gradient[j] = entities[tailOffset + j] - entities[headOffset + j] - relations[relationOffset + j];
         }
-        return error;
     }
 
-    private void updateRelation(int r1, int[] rel_path, double delta) {
-        synchronized (relationVec[r1]) {
-            for (int k = 0; k < N; k++) {
-                double x = relationVec[r1][k];
-                for (int path : rel_path) {
-                    x -= relationVec[path][k];
-                }
+    private static void scale(float[] values, float factor) {
+        for (int j = 0; j < values.length; j++) {
+            values[j] *= factor;
+        }
+    }
 
-                relationTmp[r1][k] += delta * learningRate * x;
+    private void updateRelation(int r1, int[] rel_path, double delta, UpdateLog log) {
+        if (log != null) {
+            log.add(-1, r1, -1, rel_path, delta);
+            return;
+        }
+        if (options.hogwild) {
+            applyRelationUpdate(r1, rel_path, delta);
+            return;
+        }
+        // The update steps r1 and every relation of the path, so it holds all of their stripes,
+        // taken in ascending order like updateTriple takes the stripes of the head and the tail
+        int[] stripes = new int[rel_path.length + 1];
+        stripes[0] = EmbeddingTable.stripe(r1);
+        for (int i = 0; i < rel_path.length; i++) {
+            stripes[i + 1] = EmbeddingTable.stripe(rel_path[i]);
+        }
+        Arrays.sort(stripes);
+        int stripeCount = 1;
+        for (int i = 1; i < stripes.length; i++) {
+            if (stripes[i] != stripes[stripeCount - 1]) {
+                stripes[stripeCount++] = stripes[i];
+            }
+        }
+        applyRelationUpdateLocked(stripes, 0, stripeCount, r1, rel_path, delta);
+        dirtyRelations.mark(r1);
+        for (int path : rel_path) {
+            dirtyRelations.mark(path);
+        }
+    }
 
-                x /= (float) rel_path.length;
-                for (int path : rel_path) {
-                    relationTmp[path][k] -= delta * learningRate * x;
-                }
+    /**
+     * Applies the relation update while holding the relationVec locks of stripes[i] through
+     * stripes[stripeCount - 1].
+     */
+    private void applyRelationUpdateLocked(int[] stripes, int i, int stripeCount, int r1, int[] rel_path,
+            double delta) {
+        if (i == stripeCount) {
+            applyRelationUpdate(r1, rel_path, delta);
+            return;
+        }
+        synchronized (relationVec.stripeLock(stripes[i])) {
+            applyRelationUpdateLocked(stripes, i + 1, stripeCount, r1, rel_path, delta);
+        }
+    }
+
+    private void applyRelationUpdate(int r1, int[] rel_path, double delta) {
+        float[] gradient = this.gradient.get();
+        pathResidual(r1, rel_path, gradient);
+        scale(gradient, (float) -delta);
+        relationOptimizer.step(relationTmp, r1, gradient, learningRate);
+
+        scale(gradient, -1f / rel_path.length);
+        for (int path : rel_path) {
+            relationOptimizer.step(relationTmp, path, gradient, learningRate);
+        }
+        relationVec.normalizeL2(r1);
+    }
+
+    /**
+     * Applies the part of a relation update to the rows of relationTmp that the owner owns, ie
+     * whose id modulo owners is owner.
+     */
+    private void applyOwnedRelationUpdate(int r1, int[] rel_path, double delta, int owner, int owners) {
+        boolean ownsR1 = r1 % owners == owner;
+        boolean ownsPath = false;
+        for (int path : rel_path) {
+            ownsPath |= path % owners == owner;
+        }
+        if (!ownsR1 && !ownsPath) {
+            return;
+        }
+
+        float[] gradient = this.gradient.get();
+        pathResidual(r1, rel_path, gradient);
+        scale(gradient, (float) -delta);
+        if (ownsR1) {
+            relationOptimizer.step(relationTmp, r1, gradient, learningRate);
+        }
+
+        scale(gradient, -1f / rel_path.length);
+        for (int path : rel_path) {
+            if (path % owners == owner) {
+                relationOptimizer.step(relationTmp, path, gradient, learningRate);
+            }
+        }
+        if (ownsR1) {
+            dirtyRelations.mark(r1);
+        }
+        for (int path : rel_path) {
+            if (path % owners == owner) {
+                dirtyRelations.mark(path);
             }
-            normalizeL2(relationVec[r1]);
         }
     }
 
@@ -308,46 +868,100 @@ public class PTransEAddTrain {
      * necessary.
      */
     private void trainKb(int trueHeadId, int trueRelationId, int trueTailId,
-            int corruptHeadId, int corruptRelationId, int corruptTailId) {
+            int corruptHeadId, int corruptRelationId, int corruptTailId, UpdateLog log) {
         double positiveError = evalTriple(trueHeadId, trueTailId, trueRelationId);
         double corruptError = evalTriple(corruptHeadId, corruptTailId, corruptRelationId);
         if (positiveError + MARGIN > corruptError) {
-            epochError.addAndGet(positiveError + MARGIN - corruptError);
-            updateTriple(trueHeadId, trueRelationId, trueTailId, -1);
-            updateTriple(corruptHeadId, corruptRelationId, corruptTailId, 1);
+            epochError.add(positiveError + MARGIN - corruptError);
+            updateTriple(trueHeadId, trueRelationId, trueTailId, -1, log);
+            updateTriple(corruptHeadId, corruptRelationId, corruptTailId, 1, log);
         }
     }
 
-    private double evalTriple(int e1,int e2,int rel) {
-        double error = 0;
-        for (int j = 0; j < N; j++) {
-            double err = entityVec[e2][j] - entityVec[e1][j] - relationVec[rel][j];
-            error += Math.abs(err);
-        }
-        return error;
+    double evalTriple(int e1, int e2, int rel) {
+        return TransEKernel.l1(entityVec.values, entityVec.offset(e2), entityVec.values,
+                entityVec.offset(e1), relationVec.values, relationVec.offset(rel), options.dimension);
     }
 
-    private void updateTriple(int headId, int relationId, int tailId, double delta) {
-        int firstLock = Math.min(headId, tailId);
-        int secondLock = Math.max(headId, tailId);
+    private void updateTriple(int headId, int relationId, int tailId, double delta, UpdateLog log) {
+        if (log != null) {
+            log.add(headId, relationId, tailId, null, delta);
+            return;
+        }
+        if (options.hogwild) {
+            applyTripleUpdate(headId, relationId, tailId, delta);
+            return;
+        }
 
-        synchronized (entityTmp[firstLock]) {
-            synchronized (entityTmp[secondLock]) {
-                synchronized (relationVec[relationId]) {
-                    for (int j = 0; j < N; j++) {
-                        double x = entityVec[tailId][j] - entityVec[headId][j] - relationVec[relationId][j];
+        int firstLock = Math.min(EmbeddingTable.stripe(headId), EmbeddingTable.stripe(tailId));
+        int secondLock = Math.max(EmbeddingTable.stripe(headId), EmbeddingTable.stripe(tailId));
 
-                        relationTmp[relationId][j] -= delta * learningRate * x;
-                        entityTmp[headId][j] -= delta * learningRate * x;
-                        entityTmp[tailId][j] += delta * learningRate * x;
-                    }
-                    normalizeL2(relationVec[relationId]);
+        synchronized (entityTmp.stripeLock(firstLock)) {
+            synchronized (entityTmp.stripeLock(secondLock)) {
+                synchronized (relationVec.stripeLock(EmbeddingTable.stripe(relationId))) {
+                    applyTripleUpdate(headId, relationId, tailId, delta);
                 }
-                normalizeL2(entityTmp[secondLock]);
             }
-            normalizeL2(entityTmp[firstLock]);
+        }
+        dirtyRelations.mark(relationId);
+        dirtyEntities.mark(headId);
+        dirtyEntities.mark(tailId);
+    }
+
+    private void applyTripleUpdate(int headId, int relationId, int tailId, double delta) {
+        float[] gradient = this.gradient.get();
+        tripleResidual(headId, relationId, tailId, gradient);
+        scale(gradient, (float) delta);
+        relationOptimizer.step(relationTmp, relationId, gradient, learningRate);
+        entityOptimizer.step(entityTmp, headId, gradient, learningRate);
+        scale(gradient, -1);
+        entityOptimizer.step(entityTmp, tailId, gradient, learningRate);
+
+        relationVec.normalizeL2(relationId);
+        entityTmp.normalizeL2(headId);
+        entityTmp.normalizeL2(tailId);
+    }
+
+    /**
+     * Applies the part of a triple update to the rows of entityTmp and relationTmp that the owner
+     * owns, ie whose id modulo owners is owner.
+     *
+     * Unlike applyTripleUpdate this doesn't normalize the relation in relationVec, which the
+     * other partitions of the batch may be reading.
+     */
+    private void applyOwnedTripleUpdate(int headId, int relationId, int tailId, double delta,
+            int owner, int owners) {
+        boolean ownsRelation = relationId % owners == owner;
+        boolean ownsHead = headId % owners == owner;
+        boolean ownsTail = tailId % owners == owner;
+        if (!ownsRelation && !ownsHead && !ownsTail) {
+            return;
         }
 
+        float[] gradient = this.gradient.get();
+        tripleResidual(headId, relationId, tailId, gradient);
+        scale(gradient, (float) delta);
+        if (ownsRelation) {
+            relationOptimizer.step(relationTmp, relationId, gradient, learningRate);
+        }
+        if (ownsHead) {
+            entityOptimizer.step(entityTmp, headId, gradient, learningRate);
+        }
+        if (ownsTail) {
+            scale(gradient, -1);
+            entityOptimizer.step(entityTmp, tailId, gradient, learningRate);
+        }
+        if (ownsRelation) {
+            dirtyRelations.mark(relationId);
+        }
+        if (ownsHead) {
+            entityTmp.normalizeL2(headId);
+            dirtyEntities.mark(headId);
+        }
+        if (ownsTail) {
+            entityTmp.normalizeL2(tailId);
+            dirtyEntities.mark(tailId);
+        }
     }
 
     /**
@@ -355,16 +969,123 @@ public class PTransEAddTrain {
      *
      * These are strictly positive labels.
      */
-    private void addLabel(int headId, int tailId, int relationId,
+    void addLabel(int headId, int tailId, int relationId,
             List<Pair<int[], Float>> pathResources) {
         Log.debug(headId + " " + tailId + " " + relationId + " " + pathResources.size());
         headIds.add(headId);
         tailIds.add(tailId);
         relationIds.add(relationId);
-        this.pathResources.add(pathResources);
-        Pair<Integer, Integer> key = new Pair<>(headId, relationId);
-        positiveTriples.putIfAbsent(key, new HashSet<>());
-        positiveTriples.get(key).add(tailId);
+        if (labelPathCount + pathResources.size() > labelPathIds.length) {
+            int capacity = Math.max(2 * labelPathIds.length, labelPathCount + pathResources.size());
+            labelPathIds = Arrays.copyOf(labelPathIds, capacity);
+            labelPathResources = Arrays.copyOf(labelPathResources, capacity);
+        }
+        for (Pair<int[], Float> pathResource : pathResources) {
+            labelPathIds[labelPathCount] = internPath(pathResource.first);
+            labelPathResources[labelPathCount++] = pathResource.second;
+        }
+        labelPathEnds.add(labelPathCount);
+    }
+
+    /**
+     * Returns the id of the path, giving it the next id if it is new.
+     */
+    private int internPath(int[] path) {
+        long packedPath = RelationPaths.fromArray(path);
+        int pathId = pathIds.get(packedPath) - 1;
+        if (pathId < 0) {
+            pathId = paths.size();
+            paths.add(path);
+            pathIds.put(packedPath, pathId + 1);
+        }
+        return pathId;
+    }
+
+    /**
+     * Sets the confidence from PCRA that the path implies the relation. Paths that no label has
+     * are never looked up, so they are skipped.
+     */
+    void addPathConfidence(int[] path, int relationId, float confidence) {
+        int pathId = pathIds.get(RelationPaths.fromArray(path)) - 1;
+        if (pathId < 0 || relationId >= relationCount) {
+            return;
+        }
+        int index = pathId * relationCount + relationId;
+        if (index >= pathConfidences.length) {
+            pathConfidences = Arrays.copyOf(pathConfidences, Math.max(2 * pathConfidences.length, index + 1));
+        }
+        pathConfidences[index] = confidence;
+    }
+
+    /**
+     * Adds a triple to validate on, see EarlyStopping.
+     */
+    void addValidationTriple(int headId, int tailId, int relationId) {
+        validationTriples.add(new int[] {headId, relationId, tailId});
+    }
+
+    /**
+     * Copies the labels, their paths and the entity types into the primitive arrays sampling reads.
+     */
+    private void indexLabels() {
+        int labelCount = headIds.size();
+        labelHeadIds = headIds.stream().mapToInt(Integer::intValue).toArray();
+        labelTailIds = tailIds.stream().mapToInt(Integer::intValue).toArray();
+        labelRelationIds = relationIds.stream().mapToInt(Integer::intValue).toArray();
+
+        headPositiveStart = new int[entityCount + 1];
+        for (int headId : labelHeadIds) {
+            headPositiveStart[headId + 1]++;
+        }
+        for (int headId = 0; headId < entityCount; headId++) {
+            headPositiveStart[headId + 1] += headPositiveStart[headId];
+        }
+        positiveKeys = new long[labelCount];
+        int[] next = Arrays.copyOf(headPositiveStart, entityCount);
+        for (int i = 0; i < labelCount; i++) {
+            positiveKeys[next[labelHeadIds[i]]++] = positiveKey(labelRelationIds[i], labelTailIds[i]);
+        }
+        for (int headId = 0; headId < entityCount; headId++) {
+            Arrays.sort(positiveKeys, headPositiveStart[headId], headPositiveStart[headId + 1]);
+        }
+
+        labelPathStart = new int[labelCount + 1];
+        for (int i = 0; i < labelCount; i++) {
+            labelPathStart[i + 1] = labelPathEnds.get(i);
+        }
+        pathRelations = paths.toArray(new int[0][]);
+        pathConfidences = Arrays.copyOf(pathConfidences, pathRelations.length * relationCount);
+        for (int i = 0; i < pathConfidences.length; i++) {
+            pathConfidences[i] = Math.max(MIN_PATH_CONFIDENCE, pathConfidences[i]);
+        }
+
+        entityTypes = new int[entityCount];
+        typeEntities = new int[types.size()][];
+        for (int type = 0; type < types.size(); type++) {
+            typeEntities[type] = typeToIds.get(types.get(type)).stream().mapToInt(Integer::intValue).toArray();
+            for (int entityId : typeEntities[type]) {
+                entityTypes[entityId] = type;
+            }
+        }
+    }
+
+    /**
+     * Adds an entity, whose type is the first character of its id.
+     */
+    void addEntity(String entity, int id) {
+        entityToId.put(entity, id);
+        char entityType = entity.charAt(0);
+        if (!typeToIds.containsKey(entityType)) {
+            typeToIds.put(entityType, new ArrayList<>());
+            types.add(entityType);
+        }
+        typeToIds.get(entityType).add(id);
+        entityCount++;
+    }
+
+    void addRelation() {
+        // one for forward, one for inverse
+        relationCount += 2;
     }
 
     private void prepare() throws IOException {
@@ -374,160 +1095,202 @@ public class PTransEAddTrain {
         try (BufferedReader entityReader = FileTools.bufferedReader(KGCompletion.ENTITY2ID_FILE)) {
             for (String line = entityReader.readLine(); line != null; line = entityReader.readLine()) {
                 List<String> split = WHITESPACE_SPLITTER.splitToList(line);
-                String entity = split.get(0);
-                int id = Integer.valueOf(split.get(1));
-
-                entityToId.put(entity, id);
-                char entityType = entity.charAt(0);
-                idToType.putIfAbsent(id, entityType);
-                typeToIds.putIfAbsent(entityType, new ArrayList<>());
-                typeToIds.get(entityType).add(id);
-                entityCount++;
+                addEntity(split.get(0), Integer.valueOf(split.get(1)));
             }
         }
-        typeToIds.keySet().forEach(types::add);
 
         Log.info("PTransEAddTrain.prepare", "Loading relations from " +
                 KGCompletion.RELATION2ID_FILE + "...");
         try (BufferedReader relationReader = FileTools.bufferedReader(KGCompletion.RELATION2ID_FILE)) {
             for (String line = relationReader.readLine(); line != null; line = relationReader.readLine()) {
-                // one for forward, one for inverse
-                relationCount += 2;
+                List<String> split = WHITESPACE_SPLITTER.splitToList(line);
+                relationToId.put(split.get(0), Integer.valueOf(split.get(1)));
+                addRelation();
             }
         }
 
-        Log.info("PTransEAddTrain.prepare", "Loading triples from " +
-                Pcra.Mode.TRAIN.getPathResourceFile() + "...");
-        try (BufferedReader praReader = FileTools.bufferedReader(Pcra.Mode.TRAIN.getPathResourceFile())) {
-            for (String line = praReader.readLine(); line != null; line = praReader.readLine()) {
-                Iterator<String> triple = WHITESPACE_SPLITTER.split(line).iterator();
-                String head = triple.next();
-                String tail = triple.next();
-                int relationId = Integer.valueOf(triple.next());
+        if (options.validateEvery > 0 && KGCompletion.VALID_FILE.exists()) {
+            prepareValidation();
+        }
 
-                if (!entityToId.containsKey(head)) {
-                    Log.error("PTransEAddTrain.prepare", "Missing entity " + head);
-                    return;
-                }
-                if (!entityToId.containsKey(tail)) {
-                    Log.error("PTransEAddTrain.prepare", "Missing entity " + tail);
-                    return;
+        File binaryPraFile = Pcra.Mode.TRAIN.getBinaryPathResourceFile();
+        if (binaryPraFile.exists()) {
+            Log.info("PTransEAddTrain.prepare", "Loading triples from " + binaryPraFile + "...");
+            try (PcraBinaryFormat.Reader reader = new PcraBinaryFormat.Reader(binaryPraFile,
+                    PcraBinaryFormat.PATH_RESOURCES)) {
+                for (int i = 0; i < reader.recordCount(); i++) {
+                    ByteBuffer record = reader.record(i);
+                    int headId = record.getInt();
+                    int tailId = record.getInt();
+                    int relationId = record.getInt();
+                    List<Pair<int[], Float>> pathResources = new ArrayList<>();
+                    for (int j = record.getInt(); j > 0; j--) {
+                        int[] path = PcraBinaryFormat.readPath(record);
+                        pathResources.add(new Pair<>(path, record.getFloat()));
+                    }
+                    addLabel(headId, tailId, relationId, pathResources);
                 }
+            }
+        } else {
+            Log.info("PTransEAddTrain.prepare", "Loading triples from " +
+                    Pcra.Mode.TRAIN.getPathResourceFile() + "...");
+            try (BufferedReader praReader = FileTools.bufferedReader(Pcra.Mode.TRAIN.getPathResourceFile())) {
+                for (String line = praReader.readLine(); line != null; line = praReader.readLine()) {
+                    Iterator<String> triple = WHITESPACE_SPLITTER.split(line).iterator();
+                    String head = triple.next();
+                    String tail = triple.next();
+                    int relationId = Integer.valueOf(triple.next());
+
+                    if (!entityToId.containsKey(head)) {
+                        Log.error("PTransEAddTrain.prepare", "Missing entity " + head);
+                        return;
+                    }
+                    if (!entityToId.containsKey(tail)) {
+                        Log.error("PTransEAddTrain.prepare", "Missing entity " + tail);
+                        return;
+                    }
 
-                int headId = entityToId.get(head);
-                int tailId = entityToId.get(tail);
-                List<Pair<int[], Float>> pathResources = new ArrayList<>();
-
-                String pathLine = praReader.readLine();
+                    int headId = entityToId.get(head);
+                    int tailId = entityToId.get(tail);
+                    List<Pair<int[], Float>> pathResources = new ArrayList<>();
+
+                    String pathLine = praReader.readLine();
+
+                    Iterator<String> parts = WHITESPACE_SPLITTER.split(pathLine).iterator();
+                    int size = Integer.valueOf(parts.next());
+                    for (int i = 0; i < size; i++) {
+                        // Format is <path length> <path> <resource allocation>
+                        int pathLength = Integer.valueOf(parts.next());
+                        int[] path = new int[pathLength];
+                        Iterator<String> pathParts = Pcra.PATH_SPLITTER.split(parts.next()).iterator();
+                        for (int j = 0; j < pathLength; j++) {
+                            try {
+                                path[j] = Integer.valueOf(pathParts.next());
+                            } catch (NumberFormatException e) {
+                                Log.error("PTransEAddTrain.prepare",
+                                        "Invalid path resource file row:\n" + line + "\n" + pathLine, e);
+                                throw e;
+                            }
+                        }
 
-                Iterator<String> parts = WHITESPACE_SPLITTER.split(pathLine).iterator();
-                int size = Integer.valueOf(parts.next());
-                for (int i = 0; i < size; i++) {
-                    // Format is <path length> <path> <resource allocation>
-                    int pathLength = Integer.valueOf(parts.next());
-                    int[] path = new int[pathLength];
-                    Iterator<String> pathParts = Pcra.PATH_SPLITTER.split(parts.next()).iterator();
-                    for (int j = 0; j < pathLength; j++) {
-                        try {
-                            path[j] = Integer.valueOf(pathParts.next());
-                        } catch (NumberFormatException e) {
-                            Log.error("PTransEAddTrain.prepare",
-                                    "Invalid path resource file row:\n" + line + "\n" + pathLine, e);
-                            throw e;
+                        if (pathParts.hasNext()) {
+                            Log.error("PTransEAddTrain.prepare", "Unexpected pathResources: " + pathLine);
+                            return;
                         }
+
+                        float resourceAllocation = Float.valueOf(parts.next());
+
+                        pathResources.add(new Pair<>(path, resourceAllocation));
                     }
 
-                    if (pathParts.hasNext()) {
+                    if (parts.hasNext()) {
                         Log.error("PTransEAddTrain.prepare", "Unexpected pathResources: " + pathLine);
                         return;
                     }
 
-                    float resourceAllocation = Float.valueOf(parts.next());
-
-                    pathResources.add(new Pair<>(path, resourceAllocation));
+                    addLabel(headId, tailId, relationId, pathResources);
                 }
-
-                if (parts.hasNext()) {
-                    Log.error("PTransEAddTrain.prepare", "Unexpected pathResources: " + pathLine);
-                    return;
-                }
-
-                addLabel(headId, tailId, relationId, pathResources);
             }
         }
         Log.info("PTransEAddTrain.prepare",
                 "\tentityCount=" + entityCount + ", relationCount=" + relationCount);
 
-        Log.info("PTransEAddTrain.prepare", "Loading paths from " +
-                Pcra.CONFIDENCE_FILE + "...");
-        try (BufferedReader confidenceReader = FileTools.bufferedReader(Pcra.CONFIDENCE_FILE)) {
-            for (String line = confidenceReader.readLine(); line != null; line = confidenceReader.readLine()) {
-                Iterator<String> parts = WHITESPACE_SPLITTER.split(line).iterator();
-                int size = Integer.valueOf(parts.next());
-
-                int[] path = new int[size];
-                Iterator<String> pathParts = Pcra.PATH_SPLITTER.split(parts.next()).iterator();
-                for (int i = 0; i < size; i++) {
-                    path[i] = Integer.valueOf(pathParts.next());
+        if (Pcra.CONFIDENCE_BINARY_FILE.exists()) {
+            Log.info("PTransEAddTrain.prepare", "Loading paths from " +
+                    Pcra.CONFIDENCE_BINARY_FILE + "...");
+            try (PcraBinaryFormat.Reader reader = new PcraBinaryFormat.Reader(
+                    Pcra.CONFIDENCE_BINARY_FILE, PcraBinaryFormat.CONFIDENCE)) {
+                for (int i = 0; i < reader.recordCount(); i++) {
+                    ByteBuffer record = reader.record(i);
+                    int[] path = PcraBinaryFormat.readPath(record);
+                    for (int j = record.getInt(); j > 0; j--) {
+                        int relation = record.getInt();
+                        addPathConfidence(path, relation, record.getFloat());
+                    }
                 }
+            }
+        } else {
+            Log.info("PTransEAddTrain.prepare", "Loading paths from " +
+                    Pcra.CONFIDENCE_FILE + "...");
+            try (BufferedReader confidenceReader = FileTools.bufferedReader(Pcra.CONFIDENCE_FILE)) {
+                for (String line = confidenceReader.readLine(); line != null; line = confidenceReader.readLine()) {
+                    Iterator<String> parts = WHITESPACE_SPLITTER.split(line).iterator();
+                    int size = Integer.valueOf(parts.next());
+
+                    int[] path = new int[size];
+                    Iterator<String> pathParts = Pcra.PATH_SPLITTER.split(parts.next()).iterator();
+                    for (int i = 0; i < size; i++) {
+                        path[i] = Integer.valueOf(pathParts.next());
+                    }
 
-                if (pathParts.hasNext() || parts.hasNext()) {
-                    Log.error("PTransEAddTrain.prepare", "Unexpected confidence path: " + line);
-                    return;
-                }
+                    if (pathParts.hasNext() || parts.hasNext()) {
+                        Log.error("PTransEAddTrain.prepare", "Unexpected confidence path: " + line);
+                        return;
+                    }
 
-                String confidences = confidenceReader.readLine();
+                    String confidences = confidenceReader.readLine();
 
-                Iterator<String> confidenceParts = WHITESPACE_SPLITTER.split(confidences).iterator();
-                int confidenceLength = Integer.valueOf(confidenceParts.next());
-                for (int i = 0; i < confidenceLength; i++) {
-                    int relation = Integer.valueOf(confidenceParts.next());
+                    Iterator<String> confidenceParts = WHITESPACE_SPLITTER.split(confidences).iterator();
+                    int confidenceLength = Integer.valueOf(confidenceParts.next());
+                    for (int i = 0; i < confidenceLength; i++) {
+                        int relation = Integer.valueOf(confidenceParts.next());
 
-                    float confidence = Float.valueOf(confidenceParts.next());
-                    pathConfidences.put(new Pair<>(path, relation), confidence);
+                        float confidence = Float.valueOf(confidenceParts.next());
+                        addPathConfidence(path, relation, confidence);
 
-                    Log.debug(Arrays.toString(path) + " " + relation + " " + confidence);
-                }
+                        Log.debug(Arrays.toString(path) + " " + relation + " " + confidence);
+                    }
 
-                if (parts.hasNext()) {
-                    Log.error("PTransEAddTrain.prepare", "Unexpected confidences: " + confidences);
-                    return;
+                    if (parts.hasNext()) {
+                        Log.error("PTransEAddTrain.prepare", "Unexpected confidences: " + confidences);
+                        return;
+                    }
                 }
             }
         }
     }
 
-    static double l2Norm(float[] x) {
-        double len = 0;
-        for (float i : x) {
-            len += i * i;
-        }
-        return Math.sqrt(len);
-    }
-
-    private static void normalizeL2(float[] x) {
-        double l = l2Norm(x);
-        if (l > 1) {
-            for (int i = 0; i < x.length; i++) {
-                x[i] /= l;
+    /**
+     * Samples VALIDATION_SAMPLES triples of valid.txt, reservoir sampling so the file is read once.
+     */
+    private void prepareValidation() throws IOException {
+        Log.info("PTransEAddTrain.prepare", "Loading validation triples from " +
+                KGCompletion.VALID_FILE + "...");
+        SplittableRandom random = options.seed != null ? new SplittableRandom(options.seed) :
+                new SplittableRandom();
+        int tripleCount = 0;
+        int skipped = 0;
+        try (BufferedReader validReader = FileTools.bufferedReader(KGCompletion.VALID_FILE)) {
+            for (String line = validReader.readLine(); line != null; line = validReader.readLine()) {
+                List<String> split = WHITESPACE_SPLITTER.splitToList(line);
+                Integer headId = entityToId.get(split.get(0));
+                Integer tailId = entityToId.get(split.get(1));
+                Integer relationId = relationToId.get(split.get(2));
+                if (headId == null || tailId == null || relationId == null) {
+                    skipped++;
+                    continue;
+                }
+                if (validationTriples.size() < VALIDATION_SAMPLES) {
+                    addValidationTriple(headId, tailId, relationId);
+                } else {
+                    int i = random.nextInt(tripleCount + 1);
+                    if (i < VALIDATION_SAMPLES) {
+                        validationTriples.set(i, new int[] {headId, relationId, tailId});
+                    }
+                }
+                tripleCount++;
             }
         }
+        Log.info("PTransEAddTrain.prepare", "\tsampled " + validationTriples.size() + " of " +
+                tripleCount + " validation triples, skipped " + skipped + " with unknown ids");
     }
 
-    private static double uniform(double min, double max) {
-        return min + (max - min) * Math.random();
-    }
-
-    private static int randMax(int max) {
-        return (int) (Math.random() * max);
-    }
-
-    private static float[][] deepCopy(float[][] matrix) {
-        return java.util.Arrays.stream(matrix).map(float[]::clone).toArray($ -> matrix.clone());
+    private static double uniform(double min, double max, SplittableRandom random) {
+        return min + (max - min) * random.nextDouble();
     }
 
     public static void main(String[] args) throws Exception {
-        PTransEAddTrain add = new PTransEAddTrain();
+        PTransEAddTrain add = new PTransEAddTrain(Options.parse(args));
         add.train();
     }
 }
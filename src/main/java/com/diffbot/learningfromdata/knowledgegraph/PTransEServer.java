@@ -0,0 +1,358 @@
+package com.diffbot.ml;
+
+import com.esotericsoftware.minlog.Log;
+import com.google.common.base.Splitter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the predictions of the trained PTransE model over HTTP, loading it once like
+ * PTransEAddTest:
+ *     GET /tails?head=P123&relation=SKILL[&k=8]   the likeliest tails of the head and relation
+ *     GET /similar?head=P123[&k=4]                the Persons most similar to the head
+ *     GET /metrics                                request counts, latency percentiles, batch sizes
+ * Predictions are answered as the rows of PTransEAddTest.runBatch.
+ *
+ * Queries are answered by worker threads in micro-batches: a worker takes all the queries waiting
+ * (up to --max-batch), and scores the tails of the queries with the same relation in one pass over
+ * the candidates. Queries arriving while the workers are busy form the next batches, so batches
+ * grow with load without delaying queries at low load; --batch-delay-us makes workers wait that
+ * long for fuller batches.
+ *
+ * Usage: PTransEServer [--port N] [--workers N] [--max-batch N] [--batch-delay-us N]
+ *                      [--http-threads N] [--timeout-ms N] [--ann [--probes N]]
+ */
+public class PTransEServer {
+    private static final Splitter.MapSplitter QUERY_SPLITTER = Splitter.on('&').omitEmptyStrings()
+            .withKeyValueSeparator('=');
+    private static final int DEFAULT_TAILS = 8;
+    private static final int DEFAULT_SIMILAR = 4;
+
+    static class Options {
+        int port = 8080;
+        int workers = Runtime.getRuntime().availableProcessors();
+        int maxBatch = 16;
+        long batchDelayMicros = 0;
+        /**
+         * The number of requests handled at once. Handlers wait for their query to be answered, so
+         * there must be enough of them to fill the batches of all the workers.
+         */
+        int httpThreads = 64;
+        /**
+         * How long a request waits for its answer before it fails with 503, so that requests
+         * can't hold the HTTP threads forever if the workers fall behind or die.
+         */
+        long timeoutMillis = 30_000;
+        PTransEAddTest.Options test = new PTransEAddTest.Options();
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--port":
+                        options.port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--workers":
+                        options.workers = Integer.parseInt(args[++i]);
+                        break;
+                    case "--max-batch":
+                        options.maxBatch = Integer.parseInt(args[++i]);
+                        break;
+                    case "--batch-delay-us":
+                        options.batchDelayMicros = Long.parseLong(args[++i]);
+                        break;
+                    case "--http-threads":
+                        options.httpThreads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--timeout-ms":
+                        options.timeoutMillis = Long.parseLong(args[++i]);
+                        break;
+                    case "--ann":
+                        options.test.ann = true;
+                        break;
+                    case "--probes":
+                        options.test.probes = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument " + args[i]);
+                }
+            }
+            return options;
+        }
+    }
+
+    /**
+     * A query waiting for a worker, for the tails of the relation or similar entities if
+     * relationId is -1.
+     */
+    private static final class Query {
+        final int headId;
+        final int relationId;
+        final int k;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Query(int headId, int relationId, int k) {
+            this.headId = headId;
+            this.relationId = relationId;
+            this.k = k;
+        }
+    }
+
+    /**
+     * The latencies of the last WINDOW requests of an endpoint, for percentiles.
+     */
+    private static final class Latencies {
+        private static final int WINDOW = 1 << 14;
+
+        private final long[] nanos = new long[WINDOW];
+        private long count = 0;
+
+        synchronized void record(long requestNanos) {
+            nanos[(int) (count++ % WINDOW)] = requestNanos;
+        }
+
+        synchronized String summary() {
+            long[] sorted = Arrays.copyOf(nanos, (int) Math.min(count, WINDOW));
+            Arrays.sort(sorted);
+            return String.format("count=%d\tp50Ms=%.3f\tp99Ms=%.3f", count,
+                    percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.99) / 1e6);
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, (long) (p * sorted.length))];
+        }
+    }
+
+    private final PTransEAddTest model;
+    private final Options options;
+    private final BlockingQueue<Query> queue = new LinkedBlockingQueue<>();
+    private final Latencies tailLatencies = new Latencies();
+    private final Latencies similarLatencies = new Latencies();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedQueries = new AtomicLong();
+    private HttpServer server;
+
+    PTransEServer(PTransEAddTest model, Options options) {
+        this.model = model;
+        this.options = options;
+    }
+
+    void start() throws IOException {
+        for (int i = 0; i < options.workers; i++) {
+            Thread worker = new Thread(this::work, "PTransEServer-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        server = HttpServer.create(new InetSocketAddress(options.port), 0);
+        server.createContext("/tails", exchange -> handle(exchange, tailLatencies, this::queryTails));
+        server.createContext("/similar", exchange -> handle(exchange, similarLatencies, this::querySimilar));
+        server.createContext("/metrics", exchange -> {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Only GET is supported\n");
+                return;
+            }
+            String metrics = "tails\t" + tailLatencies.summary() + "\n" +
+                    "similar\t" + similarLatencies.summary() + "\n" +
+                    String.format("batches\tcount=%d\tmeanSize=%.2f\n", batches.get(),
+                            batchedQueries.get() / (double) Math.max(1, batches.get()));
+            respond(exchange, 200, metrics);
+        });
+        server.setExecutor(Executors.newFixedThreadPool(options.httpThreads));
+        server.start();
+        Log.info("PTransEServer.start", "Listening on port " + server.getAddress().getPort());
+    }
+
+    void stop() {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdown();
+    }
+
+    private interface QueryParser {
+        Query parse(Map<String, String> parameters);
+    }
+
+    private void handle(HttpExchange exchange, Latencies latencies, QueryParser parser) throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Only GET is supported\n");
+                return;
+            }
+            Query query;
+            try {
+                query = parser.parse(parameters(exchange));
+            } catch (IllegalArgumentException | UnsupportedOperationException e) {
+                respond(exchange, 400, e.getMessage() + "\n");
+                return;
+            }
+            queue.add(query);
+            String result;
+            try {
+                result = query.result.get(options.timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                queue.remove(query);
+                respond(exchange, 503, "Timed out after " + options.timeoutMillis + "ms\n");
+                return;
+            } catch (ExecutionException e) {
+                Log.warn("PTransEServer.handle", "Query failed", e.getCause());
+                respond(exchange, 500, e.getCause() + "\n");
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                respond(exchange, 503, "Interrupted\n");
+                return;
+            }
+            respond(exchange, 200, result);
+            latencies.record(System.nanoTime() - startNanos);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static Map<String, String> parameters(HttpExchange exchange) {
+        String query = exchange.getRequestURI().getRawQuery();
+        Map<String, String> parameters = new HashMap<>();
+        if (query != null) {
+            for (Map.Entry<String, String> parameter : QUERY_SPLITTER.split(query).entrySet()) {
+                try {
+                    parameters.put(parameter.getKey(), URLDecoder.decode(parameter.getValue(), "UTF-8"));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/tab-separated-values; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private Query queryTails(Map<String, String> parameters) {
+        int headId = entityId(parameters);
+        String relation = parameters.get("relation");
+        Integer relationId = relation == null ? null : model.relationId(relation);
+        if (relationId == null) {
+            throw new IllegalArgumentException("Unknown relation " + relation);
+        }
+        // Throws UnsupportedOperationException for the relations that aren't inferred
+        model.tailCandidateIds(relationId);
+        return new Query(headId, relationId, k(parameters, DEFAULT_TAILS, PTransEAddTest.RERANK_NUM));
+    }
+
+    private Query querySimilar(Map<String, String> parameters) {
+        return new Query(entityId(parameters), -1, k(parameters, DEFAULT_SIMILAR, PTransEAddTest.SIMILAR_NUM));
+    }
+
+    private int entityId(Map<String, String> parameters) {
+        String head = parameters.get("head");
+        Integer headId = head == null ? null : model.entityId(head);
+        if (headId == null) {
+            throw new IllegalArgumentException("Unknown head " + head);
+        }
+        return headId;
+    }
+
+    private static int k(Map<String, String> parameters, int defaultK, int maxK) {
+        int k = parameters.containsKey("k") ? Integer.parseInt(parameters.get("k")) : defaultK;
+        if (k < 1 || k > maxK) {
+            throw new IllegalArgumentException("k must be between 1 and " + maxK);
+        }
+        return k;
+    }
+
+    private void work() {
+        PTransEAddTest.Inferrer inferrer = model.new Inferrer();
+        List<Query> batch = new ArrayList<>();
+        while (true) {
+            batch.clear();
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + options.batchDelayMicros * 1000;
+                while (batch.size() < options.maxBatch && System.nanoTime() < deadline) {
+                    Query query = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (query == null) {
+                        break;
+                    }
+                    batch.add(query);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, options.maxBatch - batch.size());
+            batches.incrementAndGet();
+            batchedQueries.addAndGet(batch.size());
+            answer(inferrer, batch);
+        }
+    }
+
+    /**
+     * Answers the tail queries of each relation together, then the similar queries one by one.
+     */
+    private void answer(PTransEAddTest.Inferrer inferrer, List<Query> batch) {
+        Map<Integer, List<Query>> relationQueries = new HashMap<>();
+        for (Query query : batch) {
+            relationQueries.computeIfAbsent(query.relationId, relationId -> new ArrayList<>()).add(query);
+        }
+        for (Map.Entry<Integer, List<Query>> entry : relationQueries.entrySet()) {
+            int relationId = entry.getKey();
+            List<Query> queries = entry.getValue();
+            try {
+                float[][] scores = null;
+                if (relationId >= 0) {
+                    int[] headIds = queries.stream().mapToInt(query -> query.headId).toArray();
+                    scores = model.scoreTails(headIds, headIds.length, relationId);
+                }
+                for (int i = 0; i < queries.size(); i++) {
+                    Query query = queries.get(i);
+                    StringWriter writer = new StringWriter();
+                    if (relationId >= 0) {
+                        inferrer.rankTails(query.headId, relationId, scores[i]);
+                        model.writeCandidates(writer, query.headId, relationId, inferrer.topTails, query.k);
+                    } else {
+                        inferrer.getSimilar(query.headId);
+                        model.writeCandidates(writer, query.headId, -1, inferrer.topSimilar, query.k);
+                    }
+                    query.result.complete(writer.toString());
+                }
+            } catch (Throwable e) {
+                // Fail the queries still waiting rather than leave them to time out, all those of
+                // the batch if the worker dies
+                for (Query query : e instanceof Error ? batch : queries) {
+                    query.result.completeExceptionally(e);
+                }
+                if (e instanceof Error) {
+                    Log.error("PTransEServer.answer", "Worker died", e);
+                    throw (Error) e;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        PTransEAddTest model = new PTransEAddTest(options.test);
+        if (!model.load()) {
+            Log.error("PTransEServer.main", "Could not load the model");
+            return;
+        }
+        new PTransEServer(model, options).start();
+    }
+}
@@ -0,0 +1,144 @@
+package com.diffbot.ml;
+
+import com.diffbot.toolbox.FileTools;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Destination for the reliable path resources of entity pairs computed by Pcra, ie path2,
+ * train_pra or test_pra as text and/or PcraBinaryFormat.
+ */
+interface PathResourceWriter extends Closeable {
+    /**
+     * @param relationId the relation of a train/test triple, or -1 for path2 which has none
+     * @param reliablePathResources map of relation path (see RelationPaths) -> normalized resource
+     */
+    void write(int headId, int tailId, int relationId, Map<Long, Float> reliablePathResources)
+            throws IOException;
+
+    /**
+     * Writes a triple with entities missing from entity2id.txt, which never has any paths.
+     */
+    void writeUnresolved(String head, String tail, int relationId) throws IOException;
+
+    /**
+     * @param idToEntity entity names by id, for the text output
+     */
+    static PathResourceWriter open(Pcra.Options options, String[] idToEntity, File textFile,
+            File binaryFile) throws IOException {
+        List<PathResourceWriter> writers = new ArrayList<>();
+        if (options.textOutput) {
+            writers.add(new Text(textFile, idToEntity));
+        }
+        if (options.binaryOutput) {
+            writers.add(new Binary(binaryFile));
+        }
+        return writers.size() == 1 ? writers.get(0) : new Fanout(writers);
+    }
+
+    /**
+     * Writes blocks of two lines like
+     *     <head> <tail> [<relationId>]
+     *     <path count> (<path length> <path> <resource>)*
+     */
+    class Text implements PathResourceWriter {
+        private static final DecimalFormat DECIMAL_FORMAT = new DecimalFormat("#0.0000");
+
+        private final BufferedWriter bw;
+        private final String[] idToEntity;
+
+        Text(File file, String[] idToEntity) throws IOException {
+            this.bw = FileTools.bufferedWriter(file);
+            this.idToEntity = idToEntity;
+        }
+
+        @Override
+        public void write(int headId, int tailId, int relationId,
+                Map<Long, Float> reliablePathResources) throws IOException {
+            bw.write(idToEntity[headId] + " " + idToEntity[tailId]);
+            if (relationId >= 0) {
+                bw.write(" " + relationId);
+            }
+            bw.write("\n");
+
+            bw.write(String.valueOf(reliablePathResources.size()));
+            for (Map.Entry<Long, Float> entry : reliablePathResources.entrySet()) {
+                bw.write(" " + RelationPaths.length(entry.getKey()) + " " +
+                        RelationPaths.toString(entry.getKey()) + " " +
+                        DECIMAL_FORMAT.format(entry.getValue()));
+            }
+            bw.write("\n");
+        }
+
+        @Override
+        public void writeUnresolved(String head, String tail, int relationId) throws IOException {
+            bw.write(String.format("%s %s %d\n0\n", head, tail, relationId));
+        }
+
+        @Override
+        public void close() throws IOException {
+            bw.close();
+        }
+    }
+
+    class Binary implements PathResourceWriter {
+        private final PcraBinaryFormat.Writer writer;
+
+        Binary(File file) throws IOException {
+            this.writer = new PcraBinaryFormat.Writer(file, PcraBinaryFormat.PATH_RESOURCES);
+        }
+
+        @Override
+        public void write(int headId, int tailId, int relationId,
+                Map<Long, Float> reliablePathResources) throws IOException {
+            writer.writePathResources(headId, tailId, relationId, reliablePathResources);
+        }
+
+        @Override
+        public void writeUnresolved(String head, String tail, int relationId) {
+            // Entities without ids can't be represented, and the trainers would skip them anyway
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    class Fanout implements PathResourceWriter {
+        private final List<PathResourceWriter> writers;
+
+        Fanout(List<PathResourceWriter> writers) {
+            this.writers = writers;
+        }
+
+        @Override
+        public void write(int headId, int tailId, int relationId,
+                Map<Long, Float> reliablePathResources) throws IOException {
+            for (PathResourceWriter writer : writers) {
+                writer.write(headId, tailId, relationId, reliablePathResources);
+            }
+        }
+
+        @Override
+        public void writeUnresolved(String head, String tail, int relationId) throws IOException {
+            for (PathResourceWriter writer : writers) {
+                writer.writeUnresolved(head, tail, relationId);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (PathResourceWriter writer : writers) {
+                writer.close();
+            }
+        }
+    }
+}
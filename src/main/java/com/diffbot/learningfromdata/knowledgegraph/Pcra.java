@@ -10,6 +10,11 @@ import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Java implementation of Path-Constraint Resource Allocation.
@@ -23,25 +28,37 @@ import java.util.*;
  *     entity2id.txt: entities and corresponding ids like `Qu2aSs1 145223`
  *     relation2id.txt: relations, same as above
  *
- * Outputs:
- *     path2.txt
- *     confidence.txt
- *     train_pra.txt
- *     test_pra.txt
+ * Outputs (as PcraBinaryFormat .bin files and/or text .txt files):
+ *     path2
+ *     confidence
+ *     train_pra
+ *     test_pra
+ *     path_counts (binary only, the path statistics read back by the incremental mode)
+ *
+ * Usage: Pcra [--threads N] [--streaming] [--output binary|text|both] [--hops K]
+ *     [--max-frontier N] [--shards N] [--incremental delta.txt]
  *
  * TODO: reimplement in Spark/Tensorflow
  */
 public class Pcra {
     private static final DecimalFormat DECIMAL_FORMAT = new DecimalFormat("#0.0000");
     private static final int LOG_FREQUENCY = 1_000;
+    private static final int STREAMING_CHUNK_SIZE = 1_024;
     private static final float MIN_RESOURCE = 0.01f;
-    private static final Splitter WHITESPACE_SPLITTER = Splitter.onPattern("\\s+").trimResults();
+    // the longest relation path that still fits in a long when followed by a relation
+    private static final int MAX_HOPS = RelationPaths.MAX_LENGTH - 1;
+    private static final Splitter WHITESPACE_SPLITTER = Splitter.onPattern("\\s+").trimResults().omitEmptyStrings();
     private static final File TEST_PRA_FILE = new File(KGCompletion.KB2E_DIRECTORY, "test_pra.txt");
     private static final File TRAIN_PRA_FILE = new File(KGCompletion.KB2E_DIRECTORY, "train_pra.txt");
+    private static final File TEST_PRA_BINARY_FILE = new File(KGCompletion.KB2E_DIRECTORY, "test_pra.bin");
+    private static final File TRAIN_PRA_BINARY_FILE = new File(KGCompletion.KB2E_DIRECTORY, "train_pra.bin");
 
     static final Splitter PATH_SPLITTER = Splitter.onPattern(">").trimResults();
     static final File PATH2_FILE = new File(KGCompletion.KB2E_DIRECTORY, "path2.txt");
     static final File CONFIDENCE_FILE = new File(KGCompletion.KB2E_DIRECTORY, "confidence.txt");
+    static final File PATH2_BINARY_FILE = new File(KGCompletion.KB2E_DIRECTORY, "path2.bin");
+    static final File CONFIDENCE_BINARY_FILE = new File(KGCompletion.KB2E_DIRECTORY, "confidence.bin");
+    static final File PATH_COUNTS_BINARY_FILE = new File(KGCompletion.KB2E_DIRECTORY, "path_counts.bin");
 
     protected enum Mode {
         TEST {
@@ -52,6 +69,10 @@ public class Pcra {
             @Override public File getPathResourceFile() {
                 return TEST_PRA_FILE;
             }
+
+            @Override public File getBinaryPathResourceFile() {
+                return TEST_PRA_BINARY_FILE;
+            }
         },
         TRAIN {
             @Override public File getTriplesFile() {
@@ -61,336 +82,802 @@ public class Pcra {
             @Override public File getPathResourceFile() {
                 return TRAIN_PRA_FILE;
             }
+
+            @Override public File getBinaryPathResourceFile() {
+                return TRAIN_PRA_BINARY_FILE;
+            }
         },
         ;
 
         public abstract File getTriplesFile();
         public abstract File getPathResourceFile();
+        public abstract File getBinaryPathResourceFile();
+    }
+
+    static class Options {
+        int threads = 1;
+        /**
+         * Flush each head's paths as soon as it is done instead of holding all path resources.
+         */
+        boolean streaming = false;
+        boolean binaryOutput = true;
+        boolean textOutput = false;
+        /**
+         * Length of the longest relation paths to follow from each head.
+         */
+        int hops = 2;
+        /**
+         * Most partial paths per head kept for expansion at the next hop, see Frontier.
+         */
+        int maxFrontier = 100_000;
+        /**
+         * Number of on-disk shards to partition the graph into, or 0 to hold it in memory.
+         */
+        int shards = 0;
+        /**
+         * Triples added to and removed from train.txt since the last run, see IncrementalPcra.
+         */
+        File deltaFile = null;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads":
+                        options.threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--streaming":
+                        options.streaming = true;
+                        break;
+                    case "--output":
+                        String output = args[++i];
+                        options.binaryOutput = output.equals("binary") || output.equals("both");
+                        options.textOutput = output.equals("text") || output.equals("both");
+                        if (!options.binaryOutput && !options.textOutput) {
+                            throw new IllegalArgumentException("Unknown output format " + output);
+                        }
+                        break;
+                    case "--hops":
+                        options.hops = Integer.parseInt(args[++i]);
+                        if (options.hops < 1 || options.hops > MAX_HOPS) {
+                            throw new IllegalArgumentException("--hops must be between 1 and " +
+                                    MAX_HOPS);
+                        }
+                        break;
+                    case "--max-frontier":
+                        options.maxFrontier = Integer.parseInt(args[++i]);
+                        break;
+                    case "--shards":
+                        options.shards = Integer.parseInt(args[++i]);
+                        break;
+                    case "--incremental":
+                        options.deltaFile = new File(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument " + args[i]);
+                }
+            }
+            return options;
+        }
+    }
+
+    /**
+     * Counts of relation path occurrences and co-occurrences accumulated by one thread.
+     */
+    static class PathStatistics {
+        // counts of relation path occurrences
+        final LongIntHashMap pathCounts = new LongIntHashMap();
+        // counts of relation path and relation co-occurrences
+        final LongIntHashMap relatedPathCounts = new LongIntHashMap();
+
+        // per hop: partial paths expanded, edges followed, partial paths dropped for having less
+        // than MIN_RESOURCE or for overflowing the frontier, and time spent
+        final long[] expandedPaths = new long[MAX_HOPS + 1];
+        final long[] followedEdges = new long[MAX_HOPS + 1];
+        final long[] prunedPaths = new long[MAX_HOPS + 1];
+        final long[] cappedPaths = new long[MAX_HOPS + 1];
+        final long[] hopNanos = new long[MAX_HOPS + 1];
+
+        void addAll(PathStatistics other) {
+            pathCounts.addAll(other.pathCounts);
+            relatedPathCounts.addAll(other.relatedPathCounts);
+            for (int hop = 1; hop <= MAX_HOPS; hop++) {
+                expandedPaths[hop] += other.expandedPaths[hop];
+                followedEdges[hop] += other.followedEdges[hop];
+                prunedPaths[hop] += other.prunedPaths[hop];
+                cappedPaths[hop] += other.cappedPaths[hop];
+                hopNanos[hop] += other.hopNanos[hop];
+            }
+        }
+
+        void subtractCounts(PathStatistics other) {
+            other.pathCounts.forEach((path, count) -> pathCounts.addTo(path, -count));
+            other.relatedPathCounts.forEach((path, count) -> relatedPathCounts.addTo(path, -count));
+        }
+
+        void removeZeroCounts() {
+            pathCounts.removeZeroValues();
+            relatedPathCounts.removeZeroValues();
+        }
+    }
+
+    /**
+     * The partial relation paths from one head that are expanded at the next hop: the entity each
+     * path has reached, the path, the resource that flowed along it and the number of walks that
+     * reached the entity along the path (which is how many times each expansion is counted).
+     *
+     * Entries are kept sorted by (path, entity), which is the order the original nested loops
+     * visited them in.
+     */
+    private static class Frontier {
+        int size = 0;
+        int[] entities = new int[16];
+        long[] paths = new long[16];
+        float[] resources = new float[16];
+        int[] multiplicities = new int[16];
+
+        /**
+         * Adds resource to the entry for (entityId, path), where `positions` maps
+         * `relationId entityId` to 1 + the position of the entries added since the parent path
+         * last changed.
+         */
+        void add(LongIntHashMap positions, int relationId, int entityId, long path,
+                float resource, int multiplicity) {
+            int position = positions.putIfAbsent(KGGraph.pairKey(relationId, entityId), size + 1) - 1;
+            if (position >= 0) {
+                resources[position] += resource;
+                multiplicities[position] += multiplicity;
+                return;
+            }
+
+            if (size == entities.length) {
+                entities = Arrays.copyOf(entities, 2 * size);
+                paths = Arrays.copyOf(paths, 2 * size);
+                resources = Arrays.copyOf(resources, 2 * size);
+                multiplicities = Arrays.copyOf(multiplicities, 2 * size);
+            }
+            entities[size] = entityId;
+            paths[size] = path;
+            resources[size] = resource;
+            multiplicities[size] = multiplicity;
+            size++;
+        }
+
+        /**
+         * Drops the entries with less than minResource, then all but the maxSize entries with
+         * the most resource, and restores the (path, entity) order.
+         *
+         * Both orders are sorted as packed longs: (path rank, entity) for the (path, entity)
+         * order, whose rank then breaks ties of (descending resource, rank).
+         */
+        void prune(float minResource, int maxSize, PathStatistics statistics, int hop) {
+            long[] distinctPaths = Arrays.copyOf(paths, size);
+            Arrays.sort(distinctPaths);
+            int pathCount = 0;
+            for (int i = 0; i < size; i++) {
+                if (pathCount == 0 || distinctPaths[i] != distinctPaths[pathCount - 1]) {
+                    distinctPaths[pathCount++] = distinctPaths[i];
+                }
+            }
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                long pathRank = Arrays.binarySearch(distinctPaths, 0, pathCount, paths[i]);
+                keys[i] = pathRank << Integer.SIZE | entities[i];
+            }
+            long[] sortedKeys = keys.clone();
+            Arrays.sort(sortedKeys);
+            // the entries by rank in (path, entity) order, which is unique per entry
+            int[] byRank = new int[size];
+            for (int i = 0; i < size; i++) {
+                byRank[Arrays.binarySearch(sortedKeys, keys[i])] = i;
+            }
+
+            long[] kept = new long[size];
+            int keptCount = 0;
+            for (int rank = 0; rank < size; rank++) {
+                float resource = resources[byRank[rank]];
+                if (resource >= minResource) {
+                    // Resources aren't negative, so their bits order like their values
+                    kept[keptCount++] = (long) (Integer.MAX_VALUE - Float.floatToIntBits(resource)) << Integer.SIZE | rank;
+                }
+            }
+            statistics.prunedPaths[hop] += size - keptCount;
+            if (keptCount > maxSize) {
+                Arrays.sort(kept, 0, keptCount);
+                statistics.cappedPaths[hop] += keptCount - maxSize;
+                keptCount = maxSize;
+            }
+            int[] keptRanks = new int[keptCount];
+            for (int i = 0; i < keptCount; i++) {
+                keptRanks[i] = (int) kept[i];
+            }
+            Arrays.sort(keptRanks);
+
+            int[] keptEntities = new int[keptCount];
+            long[] keptPaths = new long[keptCount];
+            float[] keptResources = new float[keptCount];
+            int[] keptMultiplicities = new int[keptCount];
+            for (int i = 0; i < keptCount; i++) {
+                int position = byRank[keptRanks[i]];
+                keptEntities[i] = entities[position];
+                keptPaths[i] = paths[position];
+                keptResources[i] = resources[position];
+                keptMultiplicities[i] = multiplicities[position];
+            }
+            entities = keptEntities;
+            paths = keptPaths;
+            resources = keptResources;
+            multiplicities = keptMultiplicities;
+            size = keptCount;
+        }
     }
 
     /**
-     * Attempts to determine the reliability of 2-step relation paths by allocating a fixed budget
+     * Attempts to determine the reliability of relation paths of up to `hops` (default 2) steps by
+     * allocating a fixed budget
      * of `resource` to flow from each relation to its co-occurring relations and maintaining
      * the paths with > MIN_RESOURCE.
      *
      * For example, BornInState->StateInCountry implies Nationality with high reliability but
      * Friend->Profession does not generalize and should have low resource and low reliability.
      *
-     * See Lin et al, Modeling Relation Paths for Representation Learning of Knowledge Bases, 2015
+     * Relation paths are packed into longs (see RelationPaths) and entity pairs into
+     * `headId << 32 | tailId` (see KGGraph.pairKey).
+     *
+     * Each head entity is processed independently on a pool of `threads` workers that count into
+     * thread-local PathStatistics, so the output does not depend on the number of threads.
+     *
+     * In streaming mode the path resources of each head are written out (and train_pra.txt and
+     * test_pra.txt joined against them) as soon as the head is done, so memory is bounded by the
+     * graph and the largest k-hop neighbourhood rather than by the total number of entity pairs.
      *
-     * TODO: parallelize
+     * In sharded mode neither the graph nor the path resources are held in memory as a whole, see
+     * ShardedPcra. In incremental mode only the heads affected by a delta of train.txt are
+     * recomputed, see IncrementalPcra.
+     *
+     * See Lin et al, Modeling Relation Paths for Representation Learning of Knowledge Bases, 2015
      */
-    private static void pathConstraintResourceAllocation() throws IOException {
+    private static void pathConstraintResourceAllocation(Options options) throws Exception {
+        Map<String, Long> stageTimes = new LinkedHashMap<>();
         long startMs = System.currentTimeMillis();
 
-        Log.info("PCRA", "Loading relations...");
-        Map<String, String> relationToId = getRelationIds();
-        int relationCount = relationToId.size();
-        Log.info("PCRA", String.format("Loaded %d relations in %dms.",
-                relationCount, System.currentTimeMillis() - startMs));
+        List<PathStatistics> threadStatistics = Collections.synchronizedList(new ArrayList<>());
+        ThreadLocal<PathStatistics> localStatistics = ThreadLocal.withInitial(() -> {
+            PathStatistics statistics = new PathStatistics();
+            threadStatistics.add(statistics);
+            return statistics;
+        });
+        // relation paths with > MIN_RESOURCE
+        Set<Long> reliablePaths = ConcurrentHashMap.newKeySet();
+
+        Log.info("PCRA", "Executing Path-Constraint Resource Allocation with " + options.threads +
+                " threads...");
+        ForkJoinPool pool = new ForkJoinPool(options.threads);
+        int relationCount;
+        // counts of the heads that are not recomputed in incremental mode
+        PathStatistics statistics = new PathStatistics();
+        if (options.deltaFile != null) {
+            IncrementalPcra incrementalPcra = new IncrementalPcra(options);
+            relationCount = incrementalPcra.relationCount;
+            statistics = incrementalPcra.run(pool, localStatistics, reliablePaths, stageTimes);
+        } else if (options.shards > 0) {
+            ShardedPcra shardedPcra = new ShardedPcra(options);
+            relationCount = shardedPcra.relationCount;
+            shardedPcra.run(pool, localStatistics, reliablePaths, stageTimes);
+        } else {
+            // TODO: use Dgraph
+            Log.info("PCRA", "Loading training relations...");
+            KGGraph graph = KGGraph.load();
+            relationCount = graph.relationCount;
+            stageTimes.put("load", System.currentTimeMillis() - startMs);
+            Log.info("PCRA", String.format("Loaded %d relations, %d entities and %d edges in %dms.",
+                    relationCount, graph.entityCount, graph.edgeCount(), stageTimes.get("load")));
+
+            if (options.streaming) {
+                streamPathResources(options, graph, pool, localStatistics, reliablePaths, stageTimes);
+            } else {
+                allocatePathResources(options, graph, pool, localStatistics, reliablePaths, stageTimes);
+            }
+        }
+
+        threadStatistics.forEach(statistics::addAll);
+        statistics.removeZeroCounts();
+        LongIntHashMap pathCounts = statistics.pathCounts;
+        LongIntHashMap relatedPathCounts = statistics.relatedPathCounts;
 
-        // TODO: use Dgraph
-        // map of `headId tailId` -> relationId's
-        Map<String, Set<String>> pairRelationMap = new HashMap<>();
-        // map of `headId` -> (map of `relationId` -> tailId's)
-        Map<String, Map<String, Set<String>>> headRelationTailMap = new HashMap<>();
-        // map of `headId tailId` -> map of (relationId -> resource)
-        Map<String, Map<String, Float>> pathResources = new HashMap<>();
+        System.out.println("PathCounts: " + pathCounts.size());
+        System.out.println("RelatedPaths: " + relatedPathCounts.size());
+        for (int hop = 1; hop <= options.hops; hop++) {
+            Log.info("PCRA", String.format("Hop %d: expanded %d partial paths along %d edges, "
+                    + "pruned %d below MIN_RESOURCE and %d over the frontier cap in %dms "
+                    + "(summed over threads)", hop, statistics.expandedPaths[hop],
+                    statistics.followedEdges[hop], statistics.prunedPaths[hop],
+                    statistics.cappedPaths[hop], statistics.hopNanos[hop] / 1_000_000));
+        }
 
         startMs = System.currentTimeMillis();
-        Log.info("PCRA", "Loading training relations...");
-        int trainingTriples = addTrainingRelations(pairRelationMap, headRelationTailMap,
-                relationToId, relationCount);
-        Log.info("PCRA", String.format("Loaded %d training relations in %dms.",
-                trainingTriples, System.currentTimeMillis() - startMs));
+        Log.info("PCRA", "Saving path confidences...");
+        writeConfidences(options, pool, reliablePaths, pathCounts, relatedPathCounts, relationCount);
+        pool.shutdown();
+        if (options.binaryOutput) {
+            try (PcraBinaryFormat.Writer countWriter = new PcraBinaryFormat.Writer(
+                    PATH_COUNTS_BINARY_FILE, PcraBinaryFormat.PATH_COUNTS)) {
+                writeCounts(countWriter, PcraBinaryFormat.PATH_COUNT, pathCounts);
+                writeCounts(countWriter, PcraBinaryFormat.RELATED_PATH_COUNT, relatedPathCounts);
+            }
+        }
+        stageTimes.put("confidence", System.currentTimeMillis() - startMs);
 
-        // counts of relation occurrences
-        Map<String, Integer> pathCounts = new HashMap<>();
-        // counts of relation co-occurrences
-        Map<String, Integer> relatedPathCounts = new HashMap<>();
+        Log.info("PCRA", "Stage times (ms): " + stageTimes);
+    }
 
-        // TODO: write directly to file, keep sum
-        // relations with > MIN_RESOURCE
-        Set<String> reliablePaths = new HashSet<>();
+    /**
+     * The confidences of the relations that co-occur with one relation path.
+     */
+    private static class PathConfidences {
+        final long path;
+        final int[] relationIds;
+        final float[] confidences;
+
+        PathConfidences(long path, int[] relationIds, float[] confidences) {
+            this.path = path;
+            this.relationIds = relationIds;
+            this.confidences = confidences;
+        }
+    }
 
-        startMs = System.currentTimeMillis();
-        Log.info("PCRA", "Executing Path-Constraint Resource Allocation...");
-
-        // Count 1-hop paths
-        // TODO: parallelize
-        int countedHeadEntities = 0;
-        for (String headId : headRelationTailMap.keySet()) {
-            countedHeadEntities++;
-            for (String relationId : headRelationTailMap.get(headId).keySet()) {
-                Set<String> tailIds = headRelationTailMap.get(headId).get(relationId);
-                for (String tailId : tailIds) {
-                    // Count relation frequencies
-                    mapIncrement(pathCounts, relationId);
-
-                    // Count frequency for this particular head,tail pair
-                    String entityPairKey = getEntityPairKey(headId, tailId);
-                    for (String nestedRelationId : pairRelationMap.get(entityPairKey)) {
-                        mapIncrement(relatedPathCounts, getPathKey(relationId, nestedRelationId));
+    /**
+     * Writes the confidence of every relation that co-occurs with a reliable path, in path order.
+     *
+     * The keys of relatedPathCounts are append(path, relationId), so once sorted they form a run
+     * per path with the relations in ascending order. That is the index of co-occurring relations:
+     * only the non-zero entries are visited, instead of probing every relation for every path. The
+     * runs are turned into confidences in parallel and written in order.
+     */
+    private static void writeConfidences(Options options, ForkJoinPool pool, Set<Long> reliablePaths,
+            LongIntHashMap pathCounts, LongIntHashMap relatedPathCounts, int relationCount)
+            throws Exception {
+        long[] keys = relatedPathCounts.keys();
+        Arrays.sort(keys);
+        List<Integer> runStarts = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 0 || RelationPaths.parent(keys[i]) != RelationPaths.parent(keys[i - 1])) {
+                runStarts.add(i);
+            }
+        }
+        runStarts.add(keys.length);
+
+        List<PathConfidences> pathConfidences = pool.submit(() -> IntStream.range(0, runStarts.size() - 1)
+                .parallel()
+                .mapToObj(run -> {
+                    int start = runStarts.get(run);
+                    int end = runStarts.get(run + 1);
+                    long path = RelationPaths.parent(keys[start]);
+                    if (!reliablePaths.contains(path) || !pathCounts.containsKey(path)) {
+                        return null;
                     }
-
-                    // Flow resource from head to tail
-                    float delta = 1 / (float) tailIds.size();
-                    nestedMapAdd(pathResources, entityPairKey, String.valueOf(relationId), delta);
+                    int[] relationIds = new int[end - start];
+                    float[] confidences = new float[end - start];
+                    int count = 0;
+                    for (int i = start; i < end; i++) {
+                        int relationId = RelationPaths.lastRelation(keys[i]);
+                        // Inverse relations are counted too, but only the forward ones are used
+                        if (relationId < relationCount) {
+                            relationIds[count] = relationId;
+                            confidences[count++] = relatedPathCounts.get(keys[i]) / (float) pathCounts.get(path);
+                        }
+                    }
+                    return count == 0 ? null : new PathConfidences(path, Arrays.copyOf(relationIds, count),
+                            Arrays.copyOf(confidences, count));
+                })
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList())).get();
+
+        try (BufferedWriter confidenceWriter = options.textOutput ?
+                     FileTools.bufferedWriter(CONFIDENCE_FILE) : null;
+                PcraBinaryFormat.Writer binaryConfidenceWriter = options.binaryOutput ?
+                        new PcraBinaryFormat.Writer(CONFIDENCE_BINARY_FILE, PcraBinaryFormat.CONFIDENCE) : null) {
+            for (PathConfidences confidences : pathConfidences) {
+                int count = confidences.relationIds.length;
+                if (confidenceWriter != null) {
+                    confidenceWriter.write("" + RelationPaths.length(confidences.path) + " " +
+                            RelationPaths.toString(confidences.path) + "\n");
+                    confidenceWriter.write(String.valueOf(count));
+                    for (int i = 0; i < count; i++) {
+                        confidenceWriter.write(" " + confidences.relationIds[i] + " " +
+                                DECIMAL_FORMAT.format(confidences.confidences[i]));
+                    }
+                    confidenceWriter.write("\n");
+                }
+                if (binaryConfidenceWriter != null) {
+                    binaryConfidenceWriter.writeConfidences(confidences.path, confidences.relationIds,
+                            confidences.confidences, count);
                 }
             }
+        }
+    }
 
-            if (countedHeadEntities % LOG_FREQUENCY == 0) {
-                Log.info("PCRA", String.format("\tCounted 1-hop path frequencies from %d "
-                        + "of %d source entities in time: %dms", countedHeadEntities,
-                        headRelationTailMap.size(), System.currentTimeMillis() - startMs));
-            }
+    private static void writeCounts(PcraBinaryFormat.Writer writer, int kind, LongIntHashMap counts)
+            throws IOException {
+        long[] paths = counts.keys();
+        Arrays.sort(paths);
+        for (long path : paths) {
+            writer.writeCount(kind, path, counts.get(path));
         }
+    }
 
-        System.out.println("PathCounts: " + pathCounts.size());
-        System.out.println("RelatedPaths: " + relatedPathCounts.size());
+    /**
+     * Runs PCRA for every head, keeping all path resources in memory until path2.txt,
+     * train_pra.txt and test_pra.txt are written.
+     */
+    private static void allocatePathResources(Options options, KGGraph graph, ForkJoinPool pool,
+            ThreadLocal<PathStatistics> localStatistics, Set<Long> reliablePaths,
+            Map<String, Long> stageTimes) throws Exception {
+        // per head: map of `headId tailId` -> map of (relation path -> resource)
+        List<Map<Long, LongFloatHashMap>> headPathResources =
+                new ArrayList<>(Collections.nCopies(graph.entityCount, null));
 
-        // TODO: parallelize
-        countedHeadEntities = 0;
-        for (String headId : headRelationTailMap.keySet()) {
-            countedHeadEntities++;
-            // Count 2-hop paths and flow resources from 1-hop parent paths
-            for (String relationId : headRelationTailMap.get(headId).keySet()) {
-                Set<String> tailIds = headRelationTailMap.get(headId).get(relationId);
-                for (String tailId : tailIds) {
-                    String entityPairKey = getEntityPairKey(headId, tailId);
-
-                    // Traverse relations sourced from the tail (2-hops from the original head)
-                    if (headRelationTailMap.containsKey(tailId)) {
-                        for (String nestedRelationId : headRelationTailMap.get(tailId).keySet()) {
-                            Set<String> tailTailIds = headRelationTailMap.get(tailId).get(nestedRelationId);
-                            String nestedRelationKey = getPathKey(relationId, nestedRelationId);
-                            for (String tailTailId : tailTailIds) {
-                                mapIncrement(pathCounts, nestedRelationKey);
-
-                                String nestedPairKey = getEntityPairKey(headId, tailTailId);
-                                if (pairRelationMap.containsKey(nestedPairKey)) {
-                                    for (String key : pairRelationMap.get(nestedPairKey)) {
-                                        mapIncrement(relatedPathCounts, getPathKey(nestedRelationKey, key));
-                                    }
-
-                                    // Flow existing resource from the 1-hop tail to 2-hop tails
-                                    float delta = pathResources.get(entityPairKey).get(relationId) / (float) tailTailIds.size();
-                                    nestedMapAdd(pathResources, nestedPairKey, nestedRelationKey, delta);
-                                }
-                            }
-                        }
-                    }
-                }
+        long startMs = System.currentTimeMillis();
+        final long traverseStartMs = startMs;
+        AtomicInteger countedHeadEntities = new AtomicInteger();
+        pool.submit(() -> IntStream.range(0, graph.entityCount).parallel().forEach(headId -> {
+            if (!graph.hasEdges(headId)) {
+                return;
             }
-
-            if (countedHeadEntities % LOG_FREQUENCY == 0) {
-                Log.info("PCRA", String.format("\tCounted 2-hop path frequencies from %d " +
-                                "of %d source entities in time: %dms", countedHeadEntities,
-                        headRelationTailMap.size(), System.currentTimeMillis() - startMs));
+            headPathResources.set(headId, allocateResources(graph, headId, options.hops,
+                    options.maxFrontier, localStatistics.get()));
+
+            int counted = countedHeadEntities.incrementAndGet();
+            if (counted % LOG_FREQUENCY == 0) {
+                Log.info("PCRA", String.format("\tCounted %d-hop path frequencies from %d "
+                        + "source entities in time: %dms", options.hops, counted,
+                        System.currentTimeMillis() - traverseStartMs));
             }
-        }
+        })).get();
+        stageTimes.put("traverse", System.currentTimeMillis() - startMs);
 
-        System.out.println("PathCounts: " + pathCounts.size());
-        System.out.println("RelatedPaths: " + relatedPathCounts.size());
+        startMs = System.currentTimeMillis();
+        try (PathResourceWriter path2Writer = PathResourceWriter.open(options, graph.idToEntity, PATH2_FILE,
+                PATH2_BINARY_FILE)) {
+            writePath2(graph, headPathResources, path2Writer, reliablePaths);
+        }
+        stageTimes.put("path2", System.currentTimeMillis() - startMs);
+        Log.info("PCRA", String.format("Executed Path-Constraint Resource "
+                        + "Allocation in %dms.", stageTimes.get("traverse") + stageTimes.get("path2")));
 
-        try (BufferedWriter path2Writer = FileTools.bufferedWriter(PATH2_FILE)) {
-            // TODO: parallelize
-            countedHeadEntities = 0;
-            for (String headId : headRelationTailMap.keySet()) {
-                countedHeadEntities++;
-                // Check all entities as possible tail or 2-hop tails
-                for (String tailId : headRelationTailMap.keySet()) {
-                    String entityPairKey = getEntityPairKey(headId, tailId);
-                    if (pathResources.containsKey(entityPairKey)) {
-                        path2Writer.write(entityPairKey + "\n");
-
-                        Map<String, Float> matchingPathResources = new HashMap<>();
-                        float sum = 0;
-                        for (Map.Entry<String, Float> entry : pathResources.get(entityPairKey).entrySet()) {
-                            matchingPathResources.put(entry.getKey(), entry.getValue());
-                            sum += entry.getValue();
-                        }
+        startMs = System.currentTimeMillis();
+        writePaths(options, Mode.TRAIN, graph, headPathResources);
+        stageTimes.put("train_pra", System.currentTimeMillis() - startMs);
 
-                        Map<String, Float> reliablePathResources = new HashMap<>();
-                        for (String key : matchingPathResources.keySet()) {
-                            if (matchingPathResources.get(key) / sum > MIN_RESOURCE) {
-                                reliablePathResources.put(key, matchingPathResources.get(key) / sum);
-                            }
-                        }
+        startMs = System.currentTimeMillis();
+        writePaths(options, Mode.TEST, graph, headPathResources);
+        stageTimes.put("test_pra", System.currentTimeMillis() - startMs);
+    }
 
-                        path2Writer.write(String.valueOf(reliablePathResources.size()));
-                        for (String path : reliablePathResources.keySet()) {
-                            reliablePaths.add(path);
-                            int length = PATH_SPLITTER.splitToList(path).size();
-                            path2Writer.write(" " + length + " " + path + " " + DECIMAL_FORMAT.format(reliablePathResources.get(path)));
-                        }
-                        path2Writer.write("\n");
-                    }
-                }
+    /**
+     * Writes the reliable paths of every pair reached from each head, in (head, tail) order.
+     * Only the tails each head actually reached are visited, so this is linear in the number of
+     * pairs rather than in entityCount^2.
+     */
+    static void writePath2(KGGraph graph, List<Map<Long, LongFloatHashMap>> headPathResources,
+            PathResourceWriter path2Writer, Set<Long> reliablePaths) throws IOException {
+        long startMs = System.currentTimeMillis();
+        int scoredHeadEntities = 0;
+        for (int headId = 0; headId < graph.entityCount; headId++) {
+            Map<Long, LongFloatHashMap> pathResources = headPathResources.get(headId);
+            if (pathResources == null) {
+                continue;
+            }
+            scoredHeadEntities++;
+
+            long[] pairKeys = pathResources.keySet().stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(pairKeys);
+            for (long pairKey : pairKeys) {
+                Map<Long, Float> reliablePathResources = getReliablePaths(pathResources.get(pairKey));
+                reliablePaths.addAll(reliablePathResources.keySet());
+                path2Writer.write(headId, KGGraph.pairTail(pairKey), -1, reliablePathResources);
+            }
 
-                if (countedHeadEntities % LOG_FREQUENCY == 0) {
-                    Log.info("PCRA", String.format("\tScored path resources from %d " +
-                                    "of %d source entities in time: %dms",
-                            countedHeadEntities, headRelationTailMap.size(),
-                            System.currentTimeMillis() - startMs));
-                }
+            if (scoredHeadEntities % LOG_FREQUENCY == 0) {
+                Log.info("PCRA", String.format("\tScored path resources from %d " +
+                                "source entities in time: %dms",
+                        scoredHeadEntities, System.currentTimeMillis() - startMs));
             }
         }
-        Log.info("PCRA", String.format("Executed Path-Constraint Resource "
-                        + "Allocation in %dms.", System.currentTimeMillis() - startMs));
-
-        Log.info("PCRA", "Saving path confidences to " + CONFIDENCE_FILE + "...");
-        try (BufferedWriter confidenceWriter = FileTools.bufferedWriter(CONFIDENCE_FILE)) {
-            for (String path : reliablePaths) {
-                List<String> out = new ArrayList<>();
-                for (int i = 0; i < relationCount; i++) {
-                    String pathKey = getPathKey(path, String.valueOf(i));
-                    if (pathCounts.containsKey(path) && relatedPathCounts.containsKey(pathKey)) {
-                        float confidence = relatedPathCounts.get(pathKey) / (float) pathCounts.get(path);
-                        out.add(" " + i + " " + DECIMAL_FORMAT.format(confidence));
+    }
+
+    /**
+     * Runs PCRA over chunks of heads in id order, writing each chunk's path2.txt entries and
+     * joining its pairs against train.txt and test.txt (grouped by head, see TripleIndex) before
+     * moving on to the next chunk.
+     */
+    private static void streamPathResources(Options options, KGGraph graph, ForkJoinPool pool,
+            ThreadLocal<PathStatistics> localStatistics, Set<Long> reliablePaths,
+            Map<String, Long> stageTimes) throws Exception {
+        long startMs = System.currentTimeMillis();
+        TripleIndex trainTriples = TripleIndex.load(Mode.TRAIN, graph);
+        TripleIndex testTriples = TripleIndex.load(Mode.TEST, graph);
+        stageTimes.put("join_index", System.currentTimeMillis() - startMs);
+
+        startMs = System.currentTimeMillis();
+        try (PathResourceWriter path2Writer = PathResourceWriter.open(options, graph.idToEntity, PATH2_FILE,
+                PATH2_BINARY_FILE);
+                PathResourceWriter trainWriter = PathResourceWriter.open(options, graph.idToEntity,
+                        Mode.TRAIN.getPathResourceFile(), Mode.TRAIN.getBinaryPathResourceFile());
+                PathResourceWriter testWriter = PathResourceWriter.open(options, graph.idToEntity,
+                        Mode.TEST.getPathResourceFile(), Mode.TEST.getBinaryPathResourceFile())) {
+            trainTriples.writeUnresolvedTriples(trainWriter);
+            testTriples.writeUnresolvedTriples(testWriter);
+
+            for (int chunkStart = 0; chunkStart < graph.entityCount; chunkStart += STREAMING_CHUNK_SIZE) {
+                int chunkEnd = Math.min(chunkStart + STREAMING_CHUNK_SIZE, graph.entityCount);
+                // map of `headId tailId` -> map of (relation path -> normalized resource) per head
+                List<Map<Long, Map<Long, Float>>> chunkResources =
+                        new ArrayList<>(Collections.nCopies(chunkEnd - chunkStart, null));
+                final int offset = chunkStart;
+                pool.submit(() -> IntStream.range(offset, chunkEnd).parallel().forEach(headId -> {
+                    if (!graph.hasEdges(headId)) {
+                        return;
                     }
-                }
-                if (!out.isEmpty()) {
-                    confidenceWriter.write("" + PATH_SPLITTER.splitToList(path).size() + " " + path + "\n");
-                    confidenceWriter.write(String.valueOf(out.size()));
-                    for (String o : out) {
-                        confidenceWriter.write(o);
+                    Map<Long, Map<Long, Float>> reliablePathResources = new TreeMap<>();
+                    allocateResources(graph, headId, options.hops, options.maxFrontier,
+                            localStatistics.get()).forEach((pairKey, resources) ->
+                                    reliablePathResources.put(pairKey, getReliablePaths(resources)));
+                    reliablePathResources.values().forEach(r -> reliablePaths.addAll(r.keySet()));
+                    chunkResources.set(headId - offset, reliablePathResources);
+                })).get();
+
+                for (int headId = chunkStart; headId < chunkEnd; headId++) {
+                    Map<Long, Map<Long, Float>> reliablePathResources = chunkResources.get(headId - offset);
+                    if (reliablePathResources == null) {
+                        reliablePathResources = Collections.emptyMap();
                     }
-                    confidenceWriter.write("\n");
+                    for (Map.Entry<Long, Map<Long, Float>> entry : reliablePathResources.entrySet()) {
+                        path2Writer.write(headId, KGGraph.pairTail(entry.getKey()), -1, entry.getValue());
+                    }
+                    trainTriples.writeHead(trainWriter, headId, reliablePathResources);
+                    testTriples.writeHead(testWriter, headId, reliablePathResources);
                 }
+                Log.info("PCRA", String.format("\tStreamed path resources from %d of %d "
+                        + "source entities in time: %dms", chunkEnd, graph.entityCount,
+                        System.currentTimeMillis() - startMs));
             }
         }
-
-        writePaths(Mode.TRAIN, relationToId, relationCount, pathResources);
-        writePaths(Mode.TEST, relationToId, relationCount, pathResources);
+        stageTimes.put("stream", System.currentTimeMillis() - startMs);
     }
 
-    private static Map<String, String> getRelationIds() throws IOException {
-        Map<String, String> relationToId = new HashMap<>();
-        try (BufferedReader relationReader = FileTools.bufferedReader(KGCompletion.RELATION2ID_FILE)) {
-            for (String line = relationReader.readLine(); line != null; line = relationReader.readLine()) {
-                Iterator<String> split = WHITESPACE_SPLITTER.split(line).iterator();
-                String headId = split.next();
-                String tailId = split.next();
-                relationToId.put(headId, tailId);
-            }
+    /**
+     * The triples of train.txt or test.txt, and their inverses, grouped by head id so they can be
+     * joined against the heads streamed out of PCRA in id order.
+     */
+    static class TripleIndex {
+        private final int[] offsets;
+        private final int[] tails;
+        private final int[] relations;
+        // triples with entities that are missing from entity2id.txt, which have no paths
+        private final List<String[]> unresolvedTriples;
+
+        private TripleIndex(int[] offsets, int[] tails, int[] relations,
+                List<String[]> unresolvedTriples) {
+            this.offsets = offsets;
+            this.tails = tails;
+            this.relations = relations;
+            this.unresolvedTriples = unresolvedTriples;
         }
-        return relationToId;
-    }
 
-    // TODO: convert to database writes
-    private static int addTrainingRelations(Map<String, Set<String>> pairRelationMap,
-            Map<String, Map<String, Set<String>>> headRelationTailMap,
-            Map<String, String> relationToId, int relationCount) throws IOException {
-        long start = System.currentTimeMillis();
-        int tripleCount = 0;
-        try (BufferedReader trainReader = FileTools.bufferedReader(KGCompletion.TRAIN_FILE)) {
-            for (String line = trainReader.readLine(); line != null; line = trainReader.readLine()) {
-                Iterator<String> split = WHITESPACE_SPLITTER.split(line).iterator();
-                String headId = split.next();
-                String tailId = split.next();
-                String relationId = relationToId.get(split.next());
-                // TODO: ignore inverse relations?
-                String inverseRelationId = getInverseRelationId(relationId, relationCount);
-                tripleCount += 2;
-
-                String tripleKey = getEntityPairKey(headId, tailId);
-                pairRelationMap.putIfAbsent(tripleKey, new HashSet<>());
-                pairRelationMap.get(tripleKey).add(relationId);
-
-                String reverseTripleKey = getEntityPairKey(tailId, headId);
-                pairRelationMap.putIfAbsent(reverseTripleKey, new HashSet<>());
-                pairRelationMap.get(reverseTripleKey).add(inverseRelationId);
-
-                headRelationTailMap.putIfAbsent(headId, new HashMap<>());
-                headRelationTailMap.get(headId).putIfAbsent(relationId, new HashSet<>());
-                headRelationTailMap.get(headId).get(relationId).add(tailId);
-
-                headRelationTailMap.putIfAbsent(tailId, new HashMap<>());
-                headRelationTailMap.get(tailId).putIfAbsent(inverseRelationId, new HashSet<>());
-                headRelationTailMap.get(tailId).get(inverseRelationId).add(headId);
-
-                if (relationCount % 100_000 == 0) {
-                    Log.info("Pcra.addTrainingRelations", "Loaded " +
-                            tripleCount + " triples in " + (System.currentTimeMillis() - start) + "ms...");
+        static TripleIndex load(Mode mode, KGGraph graph) throws IOException {
+            int[] heads = new int[1024];
+            int[] tails = new int[1024];
+            int[] relations = new int[1024];
+            int count = 0;
+            List<String[]> unresolvedTriples = new ArrayList<>();
+            try (BufferedReader br = FileTools.bufferedReader(mode.getTriplesFile())) {
+                for (String line = br.readLine(); line != null; line = br.readLine()) {
+                    Iterator<String> split = WHITESPACE_SPLITTER.split(line).iterator();
+                    String head = split.next();
+                    String tail = split.next();
+                    int relationId = graph.relationToId.get(split.next());
+
+                    Integer headId = graph.entityToId.get(head);
+                    Integer tailId = graph.entityToId.get(tail);
+                    if (headId == null || tailId == null) {
+                        unresolvedTriples.add(new String[] {head, tail, String.valueOf(relationId)});
+                        unresolvedTriples.add(new String[] {tail, head,
+                                String.valueOf(graph.inverseRelation(relationId))});
+                        continue;
+                    }
+
+                    if (count + 2 > heads.length) {
+                        heads = Arrays.copyOf(heads, 2 * heads.length);
+                        tails = Arrays.copyOf(tails, 2 * tails.length);
+                        relations = Arrays.copyOf(relations, 2 * relations.length);
+                    }
+                    heads[count] = headId;
+                    tails[count] = tailId;
+                    relations[count++] = relationId;
+                    heads[count] = tailId;
+                    tails[count] = headId;
+                    relations[count++] = graph.inverseRelation(relationId);
                 }
             }
+
+            // Counting sort by head, keeping file order within each head
+            int[] offsets = new int[graph.entityCount + 1];
+            for (int i = 0; i < count; i++) {
+                offsets[heads[i] + 1]++;
+            }
+            for (int i = 0; i < graph.entityCount; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            int[] cursor = Arrays.copyOf(offsets, graph.entityCount);
+            int[] sortedTails = new int[count];
+            int[] sortedRelations = new int[count];
+            for (int i = 0; i < count; i++) {
+                int position = cursor[heads[i]]++;
+                sortedTails[position] = tails[i];
+                sortedRelations[position] = relations[i];
+            }
+            return new TripleIndex(offsets, sortedTails, sortedRelations, unresolvedTriples);
         }
-        return tripleCount;
-    }
 
-    private static void writePaths(Mode mode, Map<String, String> relationToId, int relationCount,
-            Map<String, Map<String, Float>> pathResources) throws IOException {
-        try (BufferedReader br = FileTools.bufferedReader(mode.getTriplesFile());
-                BufferedWriter bw = FileTools.bufferedWriter(mode.getPathResourceFile())) {
-            for (String line = br.readLine(); line != null; line = br.readLine()) {
-                Iterator<String> split = WHITESPACE_SPLITTER.split(line).iterator();
-                String head = split.next();
-                String tail = split.next();
-                String relationId = relationToId.get(split.next());
+        void writeUnresolvedTriples(PathResourceWriter writer) throws IOException {
+            for (String[] triple : unresolvedTriples) {
+                writer.writeUnresolved(triple[0], triple[1], Integer.parseInt(triple[2]));
+            }
+        }
 
-                writePaths(bw, head, tail, relationId, pathResources);
-                writePaths(bw, tail, head, getInverseRelationId(relationId, relationCount),
-                        pathResources);
+        /**
+         * Writes the triples sourced from headId followed by the reliable paths between their
+         * head and tail.
+         */
+        void writeHead(PathResourceWriter writer, int headId,
+                Map<Long, Map<Long, Float>> reliablePathResources) throws IOException {
+            for (int i = offsets[headId]; i < offsets[headId + 1]; i++) {
+                writer.write(headId, tails[i], relations[i], reliablePathResources.getOrDefault(
+                        KGGraph.pairKey(headId, tails[i]), Collections.emptyMap()));
             }
         }
     }
 
-    private static void writePaths(BufferedWriter bw, String head, String tail,
-            String relationId, Map<String, Map<String, Float>> pathResources) throws IOException {
-        bw.write(String.format("%s %s %s\n", head, tail, relationId));
+    /**
+     * Flows resource from headId along its relation paths of up to `hops` relations, counting
+     * path frequencies into `statistics`. Only reads the graph, so heads may be processed
+     * concurrently.
+     *
+     * Paths are expanded one hop at a time from a Frontier. The partial paths reached at hop 1 are
+     * all expanded, as in the original 2-hop PCRA, while partial paths of 2 or more relations are
+     * only expanded if they carry at least MIN_RESOURCE, and then only the `maxFrontier` with the
+     * most resource. Resource reaching a tail that isn't directly connected to the head is not
+     * recorded (there is no triple to learn from) but still flows on to the next hop.
+     *
+     * @return map of `headId tailId` -> map of (relation path -> resource)
+     */
+    static Map<Long, LongFloatHashMap> allocateResources(KGGraph graph, int headId,
+            int hops, int maxFrontier, PathStatistics statistics) {
+        // resources of the pairs sourced from headId, by pair index - firstPair
+        int firstPair = graph.headPairStart(headId);
+        LongFloatHashMap[] pairResources = new LongFloatHashMap[graph.headPairEnd(headId) - firstPair];
+        // `relationId tailId` -> 1 + position in nextFrontier, for the current parent path
+        LongIntHashMap positions = new LongIntHashMap();
+        Frontier frontier = new Frontier();
+        frontier.add(positions, -1, headId, 0, 1, 1);
+        for (int hop = 1; hop <= hops && frontier.size > 0; hop++) {
+            long startNanos = System.nanoTime();
+            Frontier nextFrontier = hop < hops ? new Frontier() : null;
+            positions.clear();
+            for (int f = 0; f < frontier.size; f++) {
+                int entityId = frontier.entities[f];
+                long parentPath = frontier.paths[f];
+                float resource = frontier.resources[f];
+                int multiplicity = frontier.multiplicities[f];
+                if (f > 0 && parentPath != frontier.paths[f - 1]) {
+                    positions.clear();
+                }
 
-        Map<String, Float> matchingPathResources = new HashMap<>();
-        Map<String, Float> reliablePathResources = new HashMap<>();
+                int end = graph.edgeEnd(entityId);
+                for (int edge = graph.edgeStart(entityId); edge < end; ) {
+                    int relationId = graph.edgeRelation(edge);
+                    long path = RelationPaths.append(parentPath, relationId);
+                    int relationEnd = graph.relationEnd(edge, end);
+                    // Split the resource evenly between the tails of the relation
+                    float delta = resource / (float) (relationEnd - edge);
+                    statistics.followedEdges[hop] += relationEnd - edge;
+                    for (; edge < relationEnd; edge++) {
+                        // Count relation path frequencies
+                        statistics.pathCounts.addTo(path, multiplicity);
+
+                        // Count co-occurrences with the relations of this particular head,tail pair
+                        int tailId = graph.edgeTail(edge);
+                        int pair = graph.findPair(headId, tailId);
+                        if (pair >= 0) {
+                            for (int i = graph.pairRelationStart(pair); i < graph.pairRelationEnd(pair); i++) {
+                                statistics.relatedPathCounts.addTo(
+                                        RelationPaths.append(path, graph.pairRelation(i)), multiplicity);
+                            }
+                            if (pairResources[pair - firstPair] == null) {
+                                pairResources[pair - firstPair] = new LongFloatHashMap();
+                            }
+                            pairResources[pair - firstPair].addTo(path, delta);
+                        }
 
-        String entityPairKey = getEntityPairKey(head, tail);
-        if (pathResources.containsKey(entityPairKey)) {
-            float sum = 0;
-            for (String path : pathResources.get(entityPairKey).keySet()) {
-                matchingPathResources.put(path, pathResources.get(entityPairKey).get(path));
-                sum += matchingPathResources.get(path);
-            }
-            for (String path : matchingPathResources.keySet()) {
-                matchingPathResources.put(path, matchingPathResources.get(path) / sum);
-                if (matchingPathResources.get(path) > MIN_RESOURCE) {
-                    reliablePathResources.put(path, matchingPathResources.get(path));
+                        if (nextFrontier != null) {
+                            nextFrontier.add(positions, relationId, tailId, path, delta, multiplicity);
+                        }
+                    }
                 }
             }
+            statistics.expandedPaths[hop] += frontier.size;
+
+            if (nextFrontier != null && hop >= 2) {
+                nextFrontier.prune(MIN_RESOURCE, maxFrontier, statistics, hop);
+            }
+            frontier = nextFrontier;
+            statistics.hopNanos[hop] += System.nanoTime() - startNanos;
         }
 
-        bw.write(String.valueOf(reliablePathResources.size()));
-        for (String path : reliablePathResources.keySet()) {
-            bw.write(" " + PATH_SPLITTER.splitToList(path).size() + " " + path + " " +
-                    DECIMAL_FORMAT.format(reliablePathResources.get(path)));
+        Map<Long, LongFloatHashMap> pathResources = new HashMap<>();
+        for (int i = 0; i < pairResources.length; i++) {
+            if (pairResources[i] != null) {
+                pathResources.put(graph.pairKeyAt(firstPair + i), pairResources[i]);
+            }
         }
-        bw.write("\n");
+        return pathResources;
     }
 
-    private static String getEntityPairKey(String headId, String tailId) {
-        return headId + " " + tailId;
-    }
+    private static void writePaths(Options options, Mode mode, KGGraph graph,
+            List<Map<Long, LongFloatHashMap>> headPathResources) throws IOException {
+        try (BufferedReader br = FileTools.bufferedReader(mode.getTriplesFile());
+                PathResourceWriter writer = PathResourceWriter.open(options, graph.idToEntity,
+                        mode.getPathResourceFile(), mode.getBinaryPathResourceFile())) {
+            for (String line = br.readLine(); line != null; line = br.readLine()) {
+                Iterator<String> split = WHITESPACE_SPLITTER.split(line).iterator();
+                String head = split.next();
+                String tail = split.next();
+                int relationId = graph.relationToId.get(split.next());
+                int inverseRelationId = graph.inverseRelation(relationId);
+
+                Integer headId = graph.entityToId.get(head);
+                Integer tailId = graph.entityToId.get(tail);
+                if (headId == null || tailId == null) {
+                    writer.writeUnresolved(head, tail, relationId);
+                    writer.writeUnresolved(tail, head, inverseRelationId);
+                    continue;
+                }
 
-    private static String getPathKey(String relation1, String relation2) {
-        return "" + relation1 + ">" + relation2;
+                writer.write(headId, tailId, relationId,
+                        getReliablePaths(getPathResources(headPathResources, headId, tailId)));
+                writer.write(tailId, headId, inverseRelationId,
+                        getReliablePaths(getPathResources(headPathResources, tailId, headId)));
+            }
+        }
     }
 
-    private static String getInverseRelationId(String relationId, int relationCount) {
-        int relationInt = Integer.valueOf(relationId);
-        return relationInt < relationCount ? String.valueOf(relationInt + relationCount) :
-                String.valueOf(relationInt - relationCount);
+    private static LongFloatHashMap getPathResources(
+            List<Map<Long, LongFloatHashMap>> headPathResources, int headId, int tailId) {
+        Map<Long, LongFloatHashMap> pathResources = headPathResources.get(headId);
+        return pathResources == null ? null : pathResources.get(KGGraph.pairKey(headId, tailId));
     }
 
-    private static void nestedMapAdd(Map<String, Map<String, Float>> map, String key1,
-            String key2, float delta) {
-        map.putIfAbsent(key1, new HashMap<>());
-        map.get(key1).compute(key2, (k, v) -> v == null ? delta : v + delta);
-    }
+    /**
+     * Normalizes the resources of all paths between an entity pair and keeps the paths with
+     * > MIN_RESOURCE.
+     */
+    static Map<Long, Float> getReliablePaths(LongFloatHashMap matchingPathResources) {
+        if (matchingPathResources == null) {
+            return Collections.emptyMap();
+        }
 
-    private static void mapIncrement(Map<String, Integer> map, String key) {
-        map.compute(key, (k, v) -> v == null ? 1 : v + 1);
+        float sum = matchingPathResources.sum();
+        Map<Long, Float> reliablePathResources = new HashMap<>();
+        matchingPathResources.forEach((path, resource) -> {
+            if (resource / sum > MIN_RESOURCE) {
+                reliablePathResources.put(path, resource / sum);
+            }
+        });
+        return reliablePathResources;
     }
 
     public static void main(String[] args) throws Exception {
-        pathConstraintResourceAllocation();
+        pathConstraintResourceAllocation(Options.parse(args));
     }
 }
@@ -0,0 +1,105 @@
+package com.diffbot.ml;
+
+import com.esotericsoftware.minlog.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Times the path2 output stage of Pcra on synthetic graphs of increasing size with a constant
+ * average degree, where it should scale linearly with the number of edges.
+ *
+ * For comparison it also times the previous output stage, which probed a global map of path
+ * resources for every (head, tail) entity pair, on the graphs small enough for it to finish.
+ *
+ * Usage: PcraBenchmark [max triples]
+ */
+public class PcraBenchmark {
+    private static final int RELATION_COUNT = 8;
+    private static final int TRIPLES_PER_ENTITY = 4;
+    private static final int MAX_FULL_SCAN_ENTITIES = 20_000;
+
+    private static KGGraph syntheticGraph(int tripleCount, Random random) {
+        int entityCount = tripleCount / TRIPLES_PER_ENTITY;
+        int[] heads = new int[tripleCount];
+        int[] tails = new int[tripleCount];
+        int[] relations = new int[tripleCount];
+        for (int i = 0; i < tripleCount; i++) {
+            heads[i] = random.nextInt(entityCount);
+            tails[i] = random.nextInt(entityCount);
+            relations[i] = random.nextInt(RELATION_COUNT);
+        }
+        return KGGraph.fromTriples(entityCount, RELATION_COUNT, heads, tails, relations, tripleCount);
+    }
+
+    private static long timePath2(KGGraph graph, List<Map<Long, LongFloatHashMap>> headPathResources)
+            throws IOException {
+        File file = File.createTempFile("path2", ".bin");
+        file.deleteOnExit();
+        long start = System.nanoTime();
+        try (PathResourceWriter writer = new PathResourceWriter.Binary(file)) {
+            Pcra.writePath2(graph, headPathResources, writer, new HashSet<>());
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * The output stage as it was before per-head path resources: every entity is checked as a
+     * possible tail of every head.
+     */
+    private static long timeFullScan(KGGraph graph, List<Map<Long, LongFloatHashMap>> headPathResources) {
+        Map<Long, LongFloatHashMap> pathResources = new HashMap<>();
+        headPathResources.stream().filter(Objects::nonNull).forEach(pathResources::putAll);
+
+        long start = System.nanoTime();
+        int pairs = 0;
+        for (int headId = 0; headId < graph.entityCount; headId++) {
+            if (!graph.hasEdges(headId)) {
+                continue;
+            }
+            for (int tailId = 0; tailId < graph.entityCount; tailId++) {
+                if (pathResources.get(KGGraph.pairKey(headId, tailId)) != null) {
+                    pairs++;
+                }
+            }
+        }
+        if (pairs != pathResources.size()) {
+            throw new IllegalStateException("Found " + pairs + " of " + pathResources.size() + " pairs");
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int maxTriples = args.length > 0 ? Integer.parseInt(args[0]) : 400_000;
+        Log.set(Log.LEVEL_WARN);
+        Random random = new Random(42);
+
+        System.out.println("triples\tentities\tpairs\tpath2Ms\tnsPerPair\tfullScanMs");
+        for (int tripleCount = 25_000; tripleCount <= maxTriples; tripleCount *= 2) {
+            KGGraph graph = syntheticGraph(tripleCount, random);
+            Pcra.PathStatistics statistics = new Pcra.PathStatistics();
+            List<Map<Long, LongFloatHashMap>> headPathResources = new ArrayList<>();
+            long pairs = 0;
+            for (int headId = 0; headId < graph.entityCount; headId++) {
+                Map<Long, LongFloatHashMap> pathResources = graph.hasEdges(headId) ?
+                        Pcra.allocateResources(graph, headId, 2, Integer.MAX_VALUE, statistics) : null;
+                headPathResources.add(pathResources);
+                pairs += pathResources == null ? 0 : pathResources.size();
+            }
+
+            // Warm up, then keep the best of three
+            long path2Nanos = Long.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                long nanos = timePath2(graph, headPathResources);
+                path2Nanos = i == 0 ? path2Nanos : Math.min(path2Nanos, nanos);
+            }
+            String fullScanMs = graph.entityCount <= MAX_FULL_SCAN_ENTITIES ?
+                    String.valueOf(timeFullScan(graph, headPathResources) / 1_000_000) : "-";
+
+            System.out.println(String.format("%d\t%d\t%d\t%d\t%.1f\t%s", tripleCount,
+                    graph.entityCount, pairs, path2Nanos / 1_000_000, path2Nanos / (double) pairs,
+                    fullScanMs));
+        }
+    }
+}
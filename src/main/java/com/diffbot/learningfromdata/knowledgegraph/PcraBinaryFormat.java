@@ -0,0 +1,230 @@
+package com.diffbot.ml;
+
+import com.google.common.base.Preconditions;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Versioned binary format for the outputs of Pcra, read by PTransEAddTrain and PTransEAddTest
+ * through memory-mapped buffers instead of parsing text.
+ *
+ * Layout (big-endian):
+ *     header: int MAGIC, int VERSION, int record type
+ *     records, back to back
+ *     index: long offset of every record
+ *     trailer: int record count, long index offset
+ *
+ * PATH_RESOURCES records (path2, train_pra, test_pra) are
+ *     int headId, int tailId, int relationId (-1 in path2), int path count,
+ *     (int path length, int[path length] relation ids, float resource)*
+ *
+ * CONFIDENCE records are
+ *     int path length, int[path length] relation ids, int relation count,
+ *     (int relationId, float confidence)*
+ *
+ * PATH_COUNTS records (path_counts, the raw statistics behind confidence) are
+ *     int kind (PATH_COUNT or RELATED_PATH_COUNT), long packed path (see RelationPaths), int count
+ *
+ * Entities are identified by their ids in entity2id.txt rather than by name.
+ */
+final class PcraBinaryFormat {
+    static final int MAGIC = 0x50435241; // "PCRA"
+    static final int VERSION = 1;
+    static final int PATH_RESOURCES = 1;
+    static final int CONFIDENCE = 2;
+    static final int PATH_COUNTS = 3;
+
+    static final int PATH_COUNT = 0;
+    static final int RELATED_PATH_COUNT = 1;
+
+    private static final int HEADER_BYTES = 3 * Integer.BYTES;
+    private static final int TRAILER_BYTES = Integer.BYTES + Long.BYTES;
+    private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+    private PcraBinaryFormat() {}
+
+    static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private long position;
+        private long[] offsets = new long[1024];
+        private int recordCount = 0;
+
+        Writer(File file, int recordType) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(recordType);
+            position = HEADER_BYTES;
+        }
+
+        private void startRecord() {
+            if (recordCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * recordCount);
+            }
+            offsets[recordCount++] = position;
+        }
+
+        private void writeInt(int i) throws IOException {
+            out.writeInt(i);
+            position += Integer.BYTES;
+        }
+
+        private void writeFloat(float f) throws IOException {
+            out.writeFloat(f);
+            position += Float.BYTES;
+        }
+
+        private void writePath(long path) throws IOException {
+            int[] relations = RelationPaths.toArray(path);
+            writeInt(relations.length);
+            for (int relationId : relations) {
+                writeInt(relationId);
+            }
+        }
+
+        /**
+         * Writes a PATH_RESOURCES record from a map of relation path (see RelationPaths) -> resource.
+         */
+        void writePathResources(int headId, int tailId, int relationId,
+                Map<Long, Float> pathResources) throws IOException {
+            startRecord();
+            writeInt(headId);
+            writeInt(tailId);
+            writeInt(relationId);
+            writeInt(pathResources.size());
+            for (Map.Entry<Long, Float> entry : pathResources.entrySet()) {
+                writePath(entry.getKey());
+                writeFloat(entry.getValue());
+            }
+        }
+
+        void writeConfidences(long path, int[] relationIds, float[] confidences, int count)
+                throws IOException {
+            startRecord();
+            writePath(path);
+            writeInt(count);
+            for (int i = 0; i < count; i++) {
+                writeInt(relationIds[i]);
+                writeFloat(confidences[i]);
+            }
+        }
+
+        void writeCount(int kind, long path, int count) throws IOException {
+            startRecord();
+            writeInt(kind);
+            out.writeLong(path);
+            position += Long.BYTES;
+            writeInt(count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            long indexOffset = position;
+            for (int i = 0; i < recordCount; i++) {
+                out.writeLong(offsets[i]);
+            }
+            out.writeInt(recordCount);
+            out.writeLong(indexOffset);
+            out.close();
+        }
+    }
+
+    /**
+     * Memory-maps a file written by Writer. Files over 2GB are mapped as several segments that
+     * each hold whole records.
+     */
+    static class Reader implements Closeable {
+        private final FileChannel channel;
+        private final long[] offsets;
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+        private final List<Long> segmentStarts = new ArrayList<>();
+
+        Reader(File file, int recordType) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            long size = channel.size();
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            Preconditions.checkState(header.getInt() == MAGIC, "Not a PCRA binary file: " + file);
+            int version = header.getInt();
+            Preconditions.checkState(version == VERSION, "Unsupported version " + version + " of " + file);
+            int type = header.getInt();
+            Preconditions.checkState(type == recordType, "Unexpected record type " + type + " in " + file);
+
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_BYTES, TRAILER_BYTES);
+            int recordCount = trailer.getInt();
+            long indexOffset = trailer.getLong();
+
+            offsets = new long[recordCount];
+            channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, (long) recordCount * Long.BYTES)
+                    .asLongBuffer().get(offsets);
+
+            // Split the records into segments that fit in a MappedByteBuffer
+            long segmentStart = HEADER_BYTES;
+            for (int i = 0; i <= recordCount; i++) {
+                long recordEnd = i < recordCount - 1 ? offsets[i + 1] : indexOffset;
+                if (i == recordCount || recordEnd - segmentStart > MAX_SEGMENT_BYTES) {
+                    long segmentEnd = i == recordCount ? indexOffset : offsets[i];
+                    segmentStarts.add(segmentStart);
+                    segments.add(channel.map(FileChannel.MapMode.READ_ONLY, segmentStart,
+                            segmentEnd - segmentStart));
+                    segmentStart = segmentEnd;
+                }
+            }
+        }
+
+        int recordCount() {
+            return offsets.length;
+        }
+
+        /**
+         * Returns a buffer positioned at the start of record i.
+         */
+        ByteBuffer record(int i) {
+            int segment = segmentStarts.size() - 1;
+            while (segmentStarts.get(segment) > offsets[i]) {
+                segment--;
+            }
+            ByteBuffer buffer = segments.get(segment).duplicate();
+            buffer.position((int) (offsets[i] - segmentStarts.get(segment)));
+            return buffer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the paths of a PATH_RESOURCES record positioned after its relationId, as a map of
+     * relation path (see RelationPaths) -> resource in the order they were written.
+     */
+    static Map<Long, Float> readPathResources(ByteBuffer record) {
+        Map<Long, Float> pathResources = new LinkedHashMap<>();
+        for (int i = record.getInt(); i > 0; i--) {
+            long path = RelationPaths.fromArray(readPath(record));
+            pathResources.put(path, record.getFloat());
+        }
+        return pathResources;
+    }
+
+    /**
+     * Reads a length-prefixed relation path.
+     */
+    static int[] readPath(ByteBuffer buffer) {
+        int[] path = new int[buffer.getInt()];
+        for (int i = 0; i < path.length; i++) {
+            path[i] = buffer.getInt();
+        }
+        return path;
+    }
+}
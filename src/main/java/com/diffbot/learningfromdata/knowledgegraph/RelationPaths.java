@@ -0,0 +1,94 @@
+package com.diffbot.ml;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Relation paths like `3>12` packed into a single long so that PCRA can key its statistics without
+ * building Strings.
+ *
+ * Each hop occupies SLOT_BITS bits and stores relationId + 1 (so an empty slot is 0), with the
+ * first hop in the most significant occupied slot. A path of length 1 is just relationId + 1.
+ */
+final class RelationPaths {
+    private static final int SLOT_BITS = 12;
+    private static final long SLOT_MASK = (1L << SLOT_BITS) - 1;
+
+    /**
+     * Relation ids (including inverse relations) must be smaller than this.
+     */
+    static final int MAX_RELATIONS = (int) SLOT_MASK;
+
+    /**
+     * The longest path (or path followed by a co-occurring relation) that fits in a long.
+     */
+    static final int MAX_LENGTH = Long.SIZE / SLOT_BITS;
+
+    private RelationPaths() {}
+
+    static long of(int relationId) {
+        return relationId + 1;
+    }
+
+    static long append(long path, int relationId) {
+        return (path << SLOT_BITS) | (relationId + 1);
+    }
+
+    static int length(long path) {
+        int length = 0;
+        for (; path != 0; path >>>= SLOT_BITS) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the relation id of the given hop, where hop 0 is the first relation of the path.
+     */
+    static int relation(long path, int hop) {
+        int shift = (length(path) - 1 - hop) * SLOT_BITS;
+        return (int) ((path >>> shift) & SLOT_MASK) - 1;
+    }
+
+    static int lastRelation(long path) {
+        return (int) (path & SLOT_MASK) - 1;
+    }
+
+    /**
+     * Returns the path without its last relation, so that parent(append(path, r)) == path.
+     */
+    static long parent(long path) {
+        return path >>> SLOT_BITS;
+    }
+
+    static int[] toArray(long path) {
+        int[] relations = new int[length(path)];
+        for (int i = relations.length - 1; i >= 0; i--, path >>>= SLOT_BITS) {
+            relations[i] = (int) (path & SLOT_MASK) - 1;
+        }
+        return relations;
+    }
+
+    static long fromArray(int[] relations) {
+        Preconditions.checkArgument(relations.length <= MAX_LENGTH,
+                "Relation path is too long: " + relations.length);
+        long path = 0;
+        for (int relationId : relations) {
+            path = append(path, relationId);
+        }
+        return path;
+    }
+
+    /**
+     * Formats the path the way it is written to path2.txt and confidence.txt, ie `3>12`.
+     */
+    static String toString(long path) {
+        StringBuilder sb = new StringBuilder();
+        for (int relationId : toArray(path)) {
+            if (sb.length() > 0) {
+                sb.append('>');
+            }
+            sb.append(relationId);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,411 @@
+package com.diffbot.ml;
+
+import com.diffbot.toolbox.FileTools;
+import com.esotericsoftware.minlog.Log;
+import com.google.common.base.Splitter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Out-of-core PCRA for graphs that don't fit in memory, run with `Pcra --shards N`.
+ *
+ * 1. partition: the triples of train.txt and test.txt (and their inverses) are hash-partitioned
+ *    by head entity into N shard files under kb2e/shards.
+ * 2. halo: each shard fetches the edges of the entities it can reach within hops - 1 hops but
+ *    doesn't own, by sending requests to the owning shards one hop at a time.
+ * 3. shard PCRA: each shard in turn loads its own edges plus its halo and runs PCRA for the
+ *    heads it owns, writing its path2, train_pra and test_pra records in head order.
+ * 4. merge: the per-shard files are merged by head into the usual outputs.
+ *
+ * Only one shard's edges and path resources are in memory at a time. The path statistics and
+ * entity names are still held in memory, as they are bounded by the number of distinct relation
+ * paths and by the number of entities. The output matches the streaming mode of Pcra, ie
+ * train_pra and test_pra are grouped by head rather than in file order.
+ */
+class ShardedPcra {
+    private static final Splitter WHITESPACE_SPLITTER = Splitter.onPattern("\\s+").trimResults().omitEmptyStrings();
+    private static final File SHARD_DIRECTORY = new File(KGCompletion.KB2E_DIRECTORY, "shards");
+    private static final int EDGE_BYTES = 3 * Integer.BYTES;
+
+    private final Pcra.Options options;
+    private final int shards;
+    private final String[] idToEntity;
+    private final Map<String, Integer> entityToId;
+    private final Map<String, Integer> relationToId;
+    final int relationCount;
+
+    // triples with entities that are missing from entity2id.txt, which have no paths
+    private final List<String[]> unresolvedTrainTriples = new ArrayList<>();
+    private final List<String[]> unresolvedTestTriples = new ArrayList<>();
+
+    ShardedPcra(Pcra.Options options) throws IOException {
+        this.options = options;
+        this.shards = options.shards;
+        this.entityToId = KGGraph.readIds(KGCompletion.ENTITY2ID_FILE);
+        this.idToEntity = new String[entityToId.values().stream().mapToInt(i -> i + 1).max().orElse(0)];
+        entityToId.forEach((entity, id) -> idToEntity[id] = entity);
+        this.relationToId = KGGraph.readIds(KGCompletion.RELATION2ID_FILE);
+        this.relationCount = relationToId.size();
+    }
+
+    void run(ForkJoinPool pool, ThreadLocal<Pcra.PathStatistics> localStatistics,
+            Set<Long> reliablePaths, Map<String, Long> stageTimes) throws Exception {
+        if (!SHARD_DIRECTORY.isDirectory() && !SHARD_DIRECTORY.mkdirs()) {
+            throw new IOException("Could not create " + SHARD_DIRECTORY);
+        }
+
+        long startMs = System.currentTimeMillis();
+        Log.info("PCRA", "Partitioning triples into " + shards + " shards...");
+        partition(Pcra.Mode.TRAIN, "edges", unresolvedTrainTriples);
+        partition(Pcra.Mode.TEST, "test", unresolvedTestTriples);
+        stageTimes.put("partition", System.currentTimeMillis() - startMs);
+
+        startMs = System.currentTimeMillis();
+        for (int round = 1; round < options.hops; round++) {
+            Log.info("PCRA", "Fetching the " + round + "-hop halo of each shard...");
+            fetchHalo(round);
+        }
+        stageTimes.put("halo", System.currentTimeMillis() - startMs);
+
+        startMs = System.currentTimeMillis();
+        for (int shard = 0; shard < shards; shard++) {
+            allocateShard(shard, pool, localStatistics, reliablePaths);
+            Log.info("PCRA", String.format("\tExecuted PCRA on %d of %d shards in time: %dms",
+                    shard + 1, shards, System.currentTimeMillis() - startMs));
+        }
+        stageTimes.put("shard_pcra", System.currentTimeMillis() - startMs);
+
+        startMs = System.currentTimeMillis();
+        Log.info("PCRA", "Merging shards...");
+        merge("path2", Pcra.PATH2_FILE, Pcra.PATH2_BINARY_FILE, Collections.emptyList());
+        merge("train_pra", Pcra.Mode.TRAIN.getPathResourceFile(),
+                Pcra.Mode.TRAIN.getBinaryPathResourceFile(), unresolvedTrainTriples);
+        merge("test_pra", Pcra.Mode.TEST.getPathResourceFile(),
+                Pcra.Mode.TEST.getBinaryPathResourceFile(), unresolvedTestTriples);
+        File[] shardFiles = SHARD_DIRECTORY.listFiles();
+        if (shardFiles != null) {
+            for (File file : shardFiles) {
+                file.delete();
+            }
+        }
+        SHARD_DIRECTORY.delete();
+        stageTimes.put("merge", System.currentTimeMillis() - startMs);
+    }
+
+    private int shardOf(int entityId) {
+        return Math.floorMod(Long.hashCode(entityId * 0x9E3779B97F4A7C15L), shards);
+    }
+
+    private static File shardFile(String name, int shard) {
+        return new File(SHARD_DIRECTORY, name + "-" + shard + ".bin");
+    }
+
+    private DataOutputStream[] openShardFiles(String name) throws IOException {
+        DataOutputStream[] outs = new DataOutputStream[shards];
+        for (int shard = 0; shard < shards; shard++) {
+            outs[shard] = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(shardFile(name, shard)), 1 << 16));
+        }
+        return outs;
+    }
+
+    private static void close(DataOutputStream[] outs) throws IOException {
+        for (DataOutputStream out : outs) {
+            out.close();
+        }
+    }
+
+    private static void writeEdge(DataOutputStream out, int headId, int relationId, int tailId)
+            throws IOException {
+        out.writeInt(headId);
+        out.writeInt(relationId);
+        out.writeInt(tailId);
+    }
+
+    /**
+     * Writes each triple of the mode's file to the shard of its head and its inverse to the shard
+     * of its tail.
+     */
+    private void partition(Pcra.Mode mode, String name, List<String[]> unresolvedTriples)
+            throws IOException {
+        DataOutputStream[] outs = openShardFiles(name);
+        try (BufferedReader br = FileTools.bufferedReader(mode.getTriplesFile())) {
+            for (String line = br.readLine(); line != null; line = br.readLine()) {
+                Iterator<String> split = WHITESPACE_SPLITTER.split(line).iterator();
+                String head = split.next();
+                String tail = split.next();
+                int relationId = relationToId.get(split.next());
+                int inverseRelationId = relationId + relationCount;
+
+                Integer headId = entityToId.get(head);
+                Integer tailId = entityToId.get(tail);
+                if (headId == null || tailId == null) {
+                    unresolvedTriples.add(new String[] {head, tail, String.valueOf(relationId)});
+                    unresolvedTriples.add(new String[] {tail, head, String.valueOf(inverseRelationId)});
+                    continue;
+                }
+                writeEdge(outs[shardOf(headId)], headId, relationId, tailId);
+                writeEdge(outs[shardOf(tailId)], tailId, inverseRelationId, headId);
+            }
+        } finally {
+            close(outs);
+        }
+    }
+
+    /**
+     * Fetches the edges of the entities that each shard reaches at the given hop but doesn't own
+     * or already have, into `halo-<shard>-<round>`.
+     */
+    private void fetchHalo(int round) throws IOException {
+        // Each shard requests the entities it is missing from their owners
+        DataOutputStream[] requests = openShardFiles("requests");
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                Set<Integer> knownEntities = new HashSet<>();
+                for (int previousRound = 1; previousRound < round; previousRound++) {
+                    EdgeList halo = EdgeList.read(shardFile("halo-" + shard, previousRound));
+                    for (int i = 0; i < halo.size; i++) {
+                        knownEntities.add(halo.heads[i]);
+                    }
+                }
+                EdgeList reached = EdgeList.read(round == 1 ?
+                        shardFile("edges", shard) : shardFile("halo-" + shard, round - 1));
+                for (int i = 0; i < reached.size; i++) {
+                    int tailId = reached.tails[i];
+                    if (shardOf(tailId) != shard && knownEntities.add(tailId)) {
+                        requests[shardOf(tailId)].writeInt(tailId);
+                        requests[shardOf(tailId)].writeInt(shard);
+                    }
+                }
+            }
+        } finally {
+            close(requests);
+        }
+
+        // Each shard answers the requests for the entities it owns
+        DataOutputStream[] halos = new DataOutputStream[shards];
+        for (int shard = 0; shard < shards; shard++) {
+            halos[shard] = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(shardFile("halo-" + shard, round)), 1 << 16));
+        }
+        try {
+            for (int shard = 0; shard < shards; shard++) {
+                EdgeList edges = EdgeList.read(shardFile("edges", shard)).sortByHead();
+                File requestFile = shardFile("requests", shard);
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(requestFile), 1 << 16))) {
+                    for (long i = requestFile.length() / (2 * Integer.BYTES); i > 0; i--) {
+                        int entityId = in.readInt();
+                        DataOutputStream halo = halos[in.readInt()];
+                        for (int edge = edges.lowerBound(entityId);
+                                edge < edges.size && edges.heads[edge] == entityId; edge++) {
+                            writeEdge(halo, entityId, edges.relations[edge], edges.tails[edge]);
+                        }
+                    }
+                }
+                requestFile.delete();
+            }
+        } finally {
+            close(halos);
+        }
+    }
+
+    /**
+     * Runs PCRA for the heads of one shard on the graph of its edges and halo, and writes their
+     * path2, train_pra and test_pra records in head order.
+     */
+    private void allocateShard(int shard, ForkJoinPool pool,
+            ThreadLocal<Pcra.PathStatistics> localStatistics, Set<Long> reliablePaths)
+            throws Exception {
+        EdgeList trainTriples = EdgeList.read(shardFile("edges", shard));
+        EdgeList testTriples = EdgeList.read(shardFile("test", shard)).sortByHead();
+
+        EdgeList edges = EdgeList.read(shardFile("edges", shard));
+        for (int round = 1; round < options.hops; round++) {
+            edges.addAll(shardFile("halo-" + shard, round));
+        }
+        KGGraph graph = KGGraph.fromEdges(idToEntity, entityToId, relationToId, edges.heads,
+                edges.relations, edges.tails, edges.size);
+        edges = null;
+
+        trainTriples = trainTriples.sortByHead();
+        int[] heads = IntStream.concat(
+                Arrays.stream(trainTriples.heads, 0, trainTriples.size),
+                Arrays.stream(testTriples.heads, 0, testTriples.size)).distinct().sorted().toArray();
+
+        // per head: map of `headId tailId` -> map of (relation path -> normalized resource)
+        List<Map<Long, Map<Long, Float>>> headPathResources =
+                new ArrayList<>(Collections.nCopies(heads.length, null));
+        pool.submit(() -> IntStream.range(0, heads.length).parallel().forEach(i -> {
+            if (!graph.hasEdges(heads[i])) {
+                return;
+            }
+            Map<Long, Map<Long, Float>> reliablePathResources = new TreeMap<>();
+            Pcra.allocateResources(graph, heads[i], options.hops, options.maxFrontier,
+                    localStatistics.get()).forEach((pairKey, resources) ->
+                            reliablePathResources.put(pairKey, Pcra.getReliablePaths(resources)));
+            reliablePathResources.values().forEach(r -> reliablePaths.addAll(r.keySet()));
+            headPathResources.set(i, reliablePathResources);
+        })).get();
+
+        try (PcraBinaryFormat.Writer path2Writer = new PcraBinaryFormat.Writer(
+                shardFile("path2", shard), PcraBinaryFormat.PATH_RESOURCES);
+                PcraBinaryFormat.Writer trainWriter = new PcraBinaryFormat.Writer(
+                        shardFile("train_pra", shard), PcraBinaryFormat.PATH_RESOURCES);
+                PcraBinaryFormat.Writer testWriter = new PcraBinaryFormat.Writer(
+                        shardFile("test_pra", shard), PcraBinaryFormat.PATH_RESOURCES)) {
+            for (int i = 0; i < heads.length; i++) {
+                int headId = heads[i];
+                Map<Long, Map<Long, Float>> reliablePathResources = headPathResources.get(i);
+                if (reliablePathResources == null) {
+                    reliablePathResources = Collections.emptyMap();
+                }
+                for (Map.Entry<Long, Map<Long, Float>> entry : reliablePathResources.entrySet()) {
+                    path2Writer.writePathResources(headId, KGGraph.pairTail(entry.getKey()), -1,
+                            entry.getValue());
+                }
+                trainTriples.writeHead(trainWriter, headId, reliablePathResources);
+                testTriples.writeHead(testWriter, headId, reliablePathResources);
+                headPathResources.set(i, null);
+            }
+        }
+    }
+
+    /**
+     * Merges the records of the per-shard `name` files by head, which each live in one shard.
+     */
+    private void merge(String name, File textFile, File binaryFile,
+            List<String[]> unresolvedTriples) throws IOException {
+        List<PcraBinaryFormat.Reader> readers = new ArrayList<>();
+        try (PathResourceWriter writer = PathResourceWriter.open(options, idToEntity, textFile,
+                binaryFile)) {
+            for (String[] triple : unresolvedTriples) {
+                writer.writeUnresolved(triple[0], triple[1], Integer.parseInt(triple[2]));
+            }
+
+            for (int shard = 0; shard < shards; shard++) {
+                readers.add(new PcraBinaryFormat.Reader(shardFile(name, shard),
+                        PcraBinaryFormat.PATH_RESOURCES));
+            }
+            // the next record of each shard
+            int[] positions = new int[shards];
+            PriorityQueue<Integer> queue = new PriorityQueue<>(Comparator.comparingInt(
+                    (Integer shard) -> readers.get(shard).record(positions[shard]).getInt()));
+            for (int shard = 0; shard < shards; shard++) {
+                if (readers.get(shard).recordCount() > 0) {
+                    queue.add(shard);
+                }
+            }
+            while (!queue.isEmpty()) {
+                int shard = queue.poll();
+                PcraBinaryFormat.Reader reader = readers.get(shard);
+                int headId = reader.record(positions[shard]).getInt();
+                for (; positions[shard] < reader.recordCount(); positions[shard]++) {
+                    ByteBuffer record = reader.record(positions[shard]);
+                    if (record.getInt() != headId) {
+                        queue.add(shard);
+                        break;
+                    }
+                    int tailId = record.getInt();
+                    int relationId = record.getInt();
+                    writer.write(headId, tailId, relationId,
+                            PcraBinaryFormat.readPathResources(record));
+                }
+            }
+        } finally {
+            for (PcraBinaryFormat.Reader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Directed edges `head relation tail` in the order they were read, or grouped by head once
+     * sorted.
+     */
+    private static class EdgeList {
+        int size = 0;
+        int[] heads = new int[1024];
+        int[] relations = new int[1024];
+        int[] tails = new int[1024];
+
+        static EdgeList read(File file) throws IOException {
+            EdgeList edges = new EdgeList();
+            edges.addAll(file);
+            return edges;
+        }
+
+        void add(int headId, int relationId, int tailId) {
+            if (size == heads.length) {
+                heads = Arrays.copyOf(heads, 2 * size);
+                relations = Arrays.copyOf(relations, 2 * size);
+                tails = Arrays.copyOf(tails, 2 * size);
+            }
+            heads[size] = headId;
+            relations[size] = relationId;
+            tails[size] = tailId;
+            size++;
+        }
+
+        void addAll(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), 1 << 16))) {
+                for (long i = file.length() / EDGE_BYTES; i > 0; i--) {
+                    add(in.readInt(), in.readInt(), in.readInt());
+                }
+            }
+        }
+
+        /**
+         * Returns the edges sorted by head, keeping the read order within each head.
+         */
+        EdgeList sortByHead() {
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = ((long) heads[i] << 32) | i;
+            }
+            Arrays.sort(keys);
+            EdgeList sorted = new EdgeList();
+            for (long key : keys) {
+                int i = (int) key;
+                sorted.add(heads[i], relations[i], tails[i]);
+            }
+            return sorted;
+        }
+
+        /**
+         * Returns the position of the first edge of headId in a list sorted by head, or of the
+         * next head if it has none.
+         */
+        int lowerBound(int headId) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (heads[middle] < headId) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Writes the triples of headId in a list sorted by head, followed by the reliable paths
+         * between their head and tail.
+         */
+        void writeHead(PcraBinaryFormat.Writer writer, int headId,
+                Map<Long, Map<Long, Float>> reliablePathResources) throws IOException {
+            for (int i = lowerBound(headId); i < size && heads[i] == headId; i++) {
+                writer.writePathResources(headId, tails[i], relations[i],
+                        reliablePathResources.getOrDefault(KGGraph.pairKey(headId, tails[i]),
+                                Collections.emptyMap()));
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.diffbot.ml;
+
+import com.esotericsoftware.minlog.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * An inverted file (IVF) index for the cosine similarity of entity embeddings, as used by
+ * PTransEAddTest.getSimilar.
+ *
+ * The vectors are normalized once, so that cosine similarity is a dot product, and clustered by
+ * spherical k-means into about sqrt(n) lists stored contiguously by list. A search scores the
+ * centroids, then only the members of the probes best lists. More probes trade speed for recall,
+ * see SimilarityIndexBenchmark.
+ *
+ * The vectors are kept in full rather than product quantized: at the dimensions PTransE uses the
+ * flat lists are small enough to keep in memory and avoid the loss of recall of quantization.
+ *
+ * Layout (big-endian):
+ *     int MAGIC, int VERSION, int dimension, int list count, int size,
+ *     float[list count * dimension] centroids, int[list count + 1] list starts,
+ *     int[size] ids, float[size * dimension] normalized vectors,
+ *     long CRC32 of everything before it
+ */
+final class SimilarityIndex {
+    static final int MAGIC = 0x49564649; // "IVFI"
+    static final int VERSION = 1;
+
+    private static final int KMEANS_ITERATIONS = 10;
+    private static final int KMEANS_SAMPLES_PER_LIST = 64;
+
+    final int dimension;
+    private final int listCount;
+    private final float[] centroids;
+    // the members of list l are ids[listStart[l]] until ids[listStart[l + 1]]
+    private final int[] listStart;
+    private final int[] ids;
+    private final float[] vectors;
+
+    private SimilarityIndex(int dimension, float[] centroids, int[] listStart, int[] ids, float[] vectors) {
+        this.dimension = dimension;
+        this.listCount = listStart.length - 1;
+        this.centroids = centroids;
+        this.listStart = listStart;
+        this.ids = ids;
+        this.vectors = vectors;
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * Indexes the rows of the table with the given ids in about sqrt(ids.length) lists.
+     */
+    static SimilarityIndex build(EmbeddingTable table, int[] ids, long seed) {
+        return build(table, ids, Math.max(1, (int) Math.sqrt(ids.length)), seed);
+    }
+
+    static SimilarityIndex build(EmbeddingTable table, int[] ids, int maxListCount, long seed) {
+        int dimension = table.dimension;
+        if (ids.length == 0) {
+            return new SimilarityIndex(dimension, new float[dimension], new int[2], ids, new float[0]);
+        }
+        long startMs = System.currentTimeMillis();
+        float[] normalized = new float[ids.length * dimension];
+        for (int i = 0; i < ids.length; i++) {
+            System.arraycopy(table.values, table.offset(ids[i]), normalized, i * dimension, dimension);
+            normalize(normalized, i * dimension, dimension);
+        }
+
+        // k-means on a sample, then one assignment of every vector to its final list
+        int listCount = Math.max(1, Math.min(maxListCount, ids.length));
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] sample = sample(ids.length, (long) listCount * KMEANS_SAMPLES_PER_LIST, random);
+        float[] centroids = new float[listCount * dimension];
+        for (int l = 0; l < listCount; l++) {
+            System.arraycopy(normalized, sample[random.nextInt(sample.length)] * dimension, centroids,
+                    l * dimension, dimension);
+        }
+        int[] sampleLists = new int[sample.length];
+        for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+            IntStream.range(0, sample.length).parallel().forEach(i ->
+                    sampleLists[i] = nearestList(centroids, listCount, normalized, sample[i] * dimension, dimension));
+            Arrays.fill(centroids, 0);
+            int[] sizes = new int[listCount];
+            for (int i = 0; i < sample.length; i++) {
+                int list = sampleLists[i];
+                sizes[list]++;
+                for (int j = 0; j < dimension; j++) {
+                    centroids[list * dimension + j] += normalized[sample[i] * dimension + j];
+                }
+            }
+            for (int l = 0; l < listCount; l++) {
+                if (sizes[l] == 0) {
+                    // Reseed an empty list with a random vector
+                    System.arraycopy(normalized, sample[random.nextInt(sample.length)] * dimension,
+                            centroids, l * dimension, dimension);
+                } else {
+                    normalize(centroids, l * dimension, dimension);
+                }
+            }
+        }
+
+        int[] lists = IntStream.range(0, ids.length).parallel()
+                .map(i -> nearestList(centroids, listCount, normalized, i * dimension, dimension))
+                .toArray();
+        int[] listStart = new int[listCount + 1];
+        for (int list : lists) {
+            listStart[list + 1]++;
+        }
+        for (int l = 0; l < listCount; l++) {
+            listStart[l + 1] += listStart[l];
+        }
+        int[] next = Arrays.copyOf(listStart, listCount);
+        int[] listIds = new int[ids.length];
+        float[] listVectors = new float[normalized.length];
+        for (int i = 0; i < ids.length; i++) {
+            int position = next[lists[i]]++;
+            listIds[position] = ids[i];
+            System.arraycopy(normalized, i * dimension, listVectors, position * dimension, dimension);
+        }
+        Log.info("SimilarityIndex.build", String.format("Indexed %d vectors in %d lists in %dms",
+                ids.length, listCount, System.currentTimeMillis() - startMs));
+        return new SimilarityIndex(dimension, centroids, listStart, listIds, listVectors);
+    }
+
+    /**
+     * Returns min(n, count) distinct indexes below n, all of them if there are no more than count.
+     */
+    private static int[] sample(int n, long count, SplittableRandom random) {
+        int[] indexes = IntStream.range(0, n).toArray();
+        if (count >= n) {
+            return indexes;
+        }
+        for (int i = 0; i < count; i++) {
+            int j = i + random.nextInt(n - i);
+            int index = indexes[i];
+            indexes[i] = indexes[j];
+            indexes[j] = index;
+        }
+        return Arrays.copyOf(indexes, (int) count);
+    }
+
+    private static int nearestList(float[] centroids, int listCount, float[] vectors, int offset, int dimension) {
+        int nearest = 0;
+        float best = Float.NEGATIVE_INFINITY;
+        for (int l = 0; l < listCount; l++) {
+            float similarity = dot(centroids, l * dimension, vectors, offset, dimension);
+            if (similarity > best) {
+                best = similarity;
+                nearest = l;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Scales the vector to unit length, unless it is zero.
+     */
+    private static void normalize(float[] values, int offset, int dimension) {
+        double length = 0;
+        for (int j = 0; j < dimension; j++) {
+            length += values[offset + j] * values[offset + j];
+        }
+        length = Math.sqrt(length);
+        if (length > 0) {
+            for (int j = 0; j < dimension; j++) {
+                values[offset + j] /= length;
+            }
+        }
+    }
+
+    private static float dot(float[] a, int aOffset, float[] b, int bOffset, int dimension) {
+        float sum0 = 0;
+        float sum1 = 0;
+        float sum2 = 0;
+        float sum3 = 0;
+        int j = 0;
+        for (; j + 3 < dimension; j += 4) {
+            sum0 += a[aOffset + j] * b[bOffset + j];
+            sum1 += a[aOffset + j + 1] * b[bOffset + j + 1];
+            sum2 += a[aOffset + j + 2] * b[bOffset + j + 2];
+            sum3 += a[aOffset + j + 3] * b[bOffset + j + 3];
+        }
+        for (; j < dimension; j++) {
+            sum0 += a[aOffset + j] * b[bOffset + j];
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    /**
+     * Offers the indexed ids other than excludedId whose cosine similarity to the query is above
+     * minSimilarity to top, searching the probes lists with the closest centroids, and sorts top.
+     */
+    void search(float[] query, int probes, int excludedId, float minSimilarity, TopK top) {
+        float[] normalizedQuery = Arrays.copyOf(query, dimension);
+        normalize(normalizedQuery, 0, dimension);
+
+        TopK nearestLists = new TopK(Math.min(probes, listCount));
+        for (int l = 0; l < listCount; l++) {
+            nearestLists.offer(l, dot(centroids, l * dimension, normalizedQuery, 0, dimension));
+        }
+        top.clear();
+        for (int p = 0; p < nearestLists.size(); p++) {
+            int list = nearestLists.id(p);
+            for (int i = listStart[list]; i < listStart[list + 1]; i++) {
+                float similarity = dot(vectors, i * dimension, normalizedQuery, 0, dimension);
+                if (similarity > minSimilarity && ids[i] != excludedId) {
+                    top.offer(ids[i], similarity);
+                }
+            }
+        }
+        top.sortDescending();
+    }
+
+    void write(File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16), crc))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dimension);
+            out.writeInt(listCount);
+            out.writeInt(ids.length);
+            BinaryArrays.writeFloats(out, centroids);
+            BinaryArrays.writeInts(out, listStart);
+            BinaryArrays.writeInts(out, ids);
+            BinaryArrays.writeFloats(out, vectors);
+            out.writeLong(crc.getValue());
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static SimilarityIndex read(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16), crc))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a similarity index");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has unsupported version " + version);
+            }
+            int dimension = in.readInt();
+            int listCount = in.readInt();
+            int size = in.readInt();
+            if (dimension <= 0 || listCount <= 0 || size < 0 ||
+                    ((long) listCount + size) * (dimension + 1) * Float.BYTES > file.length()) {
+                throw new IOException(file + " is truncated");
+            }
+            float[] centroids = new float[listCount * dimension];
+            BinaryArrays.readFloats(in, centroids);
+            int[] listStart = new int[listCount + 1];
+            BinaryArrays.readInts(in, listStart);
+            int[] ids = new int[size];
+            BinaryArrays.readInts(in, ids);
+            float[] vectors = new float[size * dimension];
+            BinaryArrays.readFloats(in, vectors);
+            long expectedCrc = crc.getValue();
+            if (in.readLong() != expectedCrc || in.read() != -1 || listStart[listCount] != size) {
+                throw new IOException(file + " is corrupt");
+            }
+            return new SimilarityIndex(dimension, centroids, listStart, ids, vectors);
+        }
+    }
+}
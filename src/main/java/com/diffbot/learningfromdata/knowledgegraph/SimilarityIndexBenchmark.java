@@ -0,0 +1,118 @@
+package com.diffbot.ml;
+
+import com.esotericsoftware.minlog.Log;
+
+import java.util.Random;
+
+/**
+ * Compares the recall and latency of SimilarityIndex searches with the exact scan of
+ * PTransEAddTest.getSimilar, on synthetic entity vectors drawn around a number of random topics
+ * like trained embeddings tend to be. Recall is the fraction of the exact top 10 that a search
+ * returns, averaged over random queries.
+ *
+ * Usage: SimilarityIndexBenchmark [entities] [dimension] [queries]
+ */
+public class SimilarityIndexBenchmark {
+    private static final int TOPICS = 1_000;
+    private static final float TOPIC_SPREAD = 1f;
+    private static final int TOP = 10;
+    private static final int[] PROBES = {1, 2, 4, 8, 16, 32, 64};
+
+    private static EmbeddingTable syntheticVectors(int entityCount, int dimension, Random random) {
+        float[][] topics = new float[TOPICS][dimension];
+        for (float[] topic : topics) {
+            for (int j = 0; j < dimension; j++) {
+                topic[j] = (float) random.nextGaussian();
+            }
+        }
+        EmbeddingTable table = new EmbeddingTable(entityCount, dimension);
+        for (int i = 0; i < entityCount; i++) {
+            float[] topic = topics[random.nextInt(TOPICS)];
+            for (int j = 0; j < dimension; j++) {
+                table.set(i, j, topic[j] + TOPIC_SPREAD * (float) random.nextGaussian());
+            }
+        }
+        return table;
+    }
+
+    private static double dot(EmbeddingTable table, int e1, int e2) {
+        float[] values = table.values;
+        int e1Offset = table.offset(e1);
+        int e2Offset = table.offset(e2);
+        double sum = 0;
+        for (int j = 0; j < table.dimension; j++) {
+            sum += values[e1Offset + j] * values[e2Offset + j];
+        }
+        return sum;
+    }
+
+    /**
+     * The exact top of getSimilar, computing the norms per pair like it used to, or with
+     * precomputed norms.
+     */
+    private static void exactTop(EmbeddingTable table, float[] norms, int headId, TopK top) {
+        top.clear();
+        for (int i = 0; i < table.rowCount; i++) {
+            if (i != headId) {
+                double norm1 = norms != null ? norms[headId] : table.l2Norm(headId);
+                double norm2 = norms != null ? norms[i] : table.l2Norm(i);
+                top.offer(i, (float) (dot(table, headId, i) / (norm1 * norm2)));
+            }
+        }
+        top.sortDescending();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int entityCount = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int dimension = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int queryCount = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        Log.set(Log.LEVEL_WARN);
+        Random random = new Random(42);
+        EmbeddingTable table = syntheticVectors(entityCount, dimension, random);
+        int[] ids = new int[entityCount];
+        float[] norms = new float[entityCount];
+        for (int i = 0; i < entityCount; i++) {
+            ids[i] = i;
+            norms[i] = (float) table.l2Norm(i);
+        }
+        int[] queries = random.ints(queryCount, 0, entityCount).toArray();
+
+        long start = System.nanoTime();
+        SimilarityIndex index = SimilarityIndex.build(table, ids, 42);
+        System.out.println(String.format("built index of %d vectors in %dms", entityCount,
+                (System.nanoTime() - start) / 1_000_000));
+
+        TopK top = new TopK(TOP);
+        int[][] exact = new int[queryCount][TOP];
+        System.out.println("method\tprobes\trecallAt10\tmicrosPerQuery");
+        for (boolean precomputedNorms : new boolean[] {false, true}) {
+            start = System.nanoTime();
+            for (int q = 0; q < queryCount; q++) {
+                exactTop(table, precomputedNorms ? norms : null, queries[q], top);
+                for (int i = 0; i < TOP; i++) {
+                    exact[q][i] = top.id(i);
+                }
+            }
+            System.out.println(String.format("%s\t-\t1.000\t%.0f", precomputedNorms ? "exact+norms" : "exact",
+                    (System.nanoTime() - start) / 1e3 / queryCount));
+        }
+
+        float[] query = new float[dimension];
+        for (int probes : PROBES) {
+            int found = 0;
+            start = System.nanoTime();
+            for (int q = 0; q < queryCount; q++) {
+                System.arraycopy(table.values, table.offset(queries[q]), query, 0, dimension);
+                index.search(query, probes, queries[q], -1, top);
+                for (int i = 0; i < top.size(); i++) {
+                    for (int expected : exact[q]) {
+                        found += top.id(i) == expected ? 1 : 0;
+                    }
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.println(String.format("ivf\t%d\t%.3f\t%.0f", probes,
+                    found / (double) (queryCount * TOP), nanos / 1e3 / queryCount));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.diffbot.ml;
+
+/**
+ * Keeps the k highest scoring of the ids offered to it in a binary min-heap over primitive arrays,
+ * with the lowest kept score at the root, so that offering n candidates costs O(n log k) and
+ * allocates nothing.
+ *
+ * The kept ids are in heap order until sortDescending, which ranks them. Scores can be replaced in
+ * between, eg to rerank the kept ids with a more expensive score, as sortDescending restores the
+ * heap first.
+ */
+final class TopK {
+    private final int[] ids;
+    private final float[] scores;
+    private int size = 0;
+
+    TopK(int k) {
+        ids = new int[k];
+        scores = new float[k];
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int id(int i) {
+        return ids[i];
+    }
+
+    float score(int i) {
+        return scores[i];
+    }
+
+    void setScore(int i, float score) {
+        scores[i] = score;
+    }
+
+    /**
+     * Keeps the id if fewer than k ids are kept or its score is higher than the lowest kept one,
+     * which it then replaces.
+     */
+    void offer(int id, float score) {
+        if (size < ids.length) {
+            ids[size] = id;
+            scores[size] = score;
+            siftUp(size++);
+        } else if (ids.length > 0 && score > scores[0]) {
+            ids[0] = id;
+            scores[0] = score;
+            siftDown(0, size);
+        }
+    }
+
+    /**
+     * Sorts the kept ids by descending score, so that id(0) is the best.
+     */
+    void sortDescending() {
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i, size);
+        }
+        // Moving the lowest remaining score behind the heap leaves the array in descending order
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (scores[parent] <= scores[i]) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        for (int child = 2 * i + 1; child < end; i = child, child = 2 * i + 1) {
+            if (child + 1 < end && scores[child + 1] < scores[child]) {
+                child++;
+            }
+            if (scores[i] <= scores[child]) {
+                return;
+            }
+            swap(i, child);
+        }
+    }
+
+    private void swap(int i, int j) {
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        float score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+}
@@ -0,0 +1,211 @@
+package com.diffbot.ml;
+
+import com.esotericsoftware.minlog.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A binary checkpoint of PTransEAddTrain: the embedding tables, the state of their optimizers and
+ * of the learning-rate schedule after some number of epochs, from which a long run can resume.
+ *
+ * Layout (big-endian):
+ *     int MAGIC, int VERSION, int epochs completed, float learning rate,
+ *     int entity count, int relation count, int dimension,
+ *     float[entity count * dimension] entity embeddings,
+ *     float[relation count * dimension] relation embeddings,
+ *     UTF optimizer name, then for the entity and then the relation Optimizer:
+ *         int n, n times (int length, float[length]) float state,
+ *         int m, m times (int length, int[length]) int state,
+ *     long CRC32 of everything before it
+ *
+ * Version 1 checkpoints, which have no optimizer state, still read back with null optimizers.
+ *
+ * Checkpoints are named by epoch and written to a temporary file that is then renamed, so a crash
+ * while writing leaves the previous checkpoints intact. Only the last KEPT_CHECKPOINTS are kept.
+ */
+final class TrainingCheckpoint {
+    static final int MAGIC = 0x50545245; // "PTRE"
+    static final int VERSION = 2;
+    static final File CHECKPOINT_DIRECTORY = new File(KGCompletion.KB2E_DIRECTORY, "checkpoints");
+
+    private static final int KEPT_CHECKPOINTS = 2;
+    private static final String PREFIX = "ptranse-";
+    private static final String SUFFIX = ".ckpt";
+
+    final int epoch;
+    final float learningRate;
+    final EmbeddingTable entityVec;
+    final EmbeddingTable relationVec;
+    final Optimizer entityOptimizer;
+    final Optimizer relationOptimizer;
+
+    TrainingCheckpoint(int epoch, float learningRate, EmbeddingTable entityVec, EmbeddingTable relationVec,
+            Optimizer entityOptimizer, Optimizer relationOptimizer) {
+        this.epoch = epoch;
+        this.learningRate = learningRate;
+        this.entityVec = entityVec;
+        this.relationVec = relationVec;
+        this.entityOptimizer = entityOptimizer;
+        this.relationOptimizer = relationOptimizer;
+    }
+
+    private static File file(File directory, int epoch) {
+        return new File(directory, String.format("%s%08d%s", PREFIX, epoch, SUFFIX));
+    }
+
+    /**
+     * Returns the checkpoints in the directory, newest first.
+     */
+    private static File[] checkpointFiles(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName).reversed());
+        return files;
+    }
+
+    void write(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        File file = file(directory, epoch);
+        File tmpFile = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16), crc))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(epoch);
+            out.writeFloat(learningRate);
+            out.writeInt(entityVec.rowCount);
+            out.writeInt(relationVec.rowCount);
+            out.writeInt(entityVec.dimension);
+            BinaryArrays.writeFloats(out, entityVec.values);
+            BinaryArrays.writeFloats(out, relationVec.values);
+            out.writeUTF(entityOptimizer.name());
+            writeState(out, entityOptimizer);
+            writeState(out, relationOptimizer);
+            out.writeLong(crc.getValue());
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        File[] files = checkpointFiles(directory);
+        for (int i = KEPT_CHECKPOINTS; i < files.length; i++) {
+            Files.delete(files[i].toPath());
+        }
+    }
+
+    private static void writeState(DataOutputStream out, Optimizer optimizer) throws IOException {
+        out.writeInt(optimizer.floatState().length);
+        for (float[] state : optimizer.floatState()) {
+            out.writeInt(state.length);
+            BinaryArrays.writeFloats(out, state);
+        }
+        out.writeInt(optimizer.intState().length);
+        for (int[] state : optimizer.intState()) {
+            out.writeInt(state.length);
+            BinaryArrays.writeInts(out, state);
+        }
+    }
+
+    /**
+     * Reads the state written by writeState into a new optimizer of the name, checking that it has
+     * the same shape.
+     */
+    private static Optimizer readState(DataInputStream in, File file, String name, int rowCount,
+            int dimension) throws IOException {
+        Optimizer optimizer;
+        try {
+            optimizer = Optimizer.create(name, rowCount, dimension);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + " has unknown optimizer " + name);
+        }
+        float[][] floatState = optimizer.floatState();
+        if (in.readInt() != floatState.length) {
+            throw new IOException(file + " is corrupt");
+        }
+        for (float[] state : floatState) {
+            if (in.readInt() != state.length) {
+                throw new IOException(file + " is corrupt");
+            }
+            BinaryArrays.readFloats(in, state);
+        }
+        int[][] intState = optimizer.intState();
+        if (in.readInt() != intState.length) {
+            throw new IOException(file + " is corrupt");
+        }
+        for (int[] state : intState) {
+            if (in.readInt() != state.length) {
+                throw new IOException(file + " is corrupt");
+            }
+            BinaryArrays.readInts(in, state);
+        }
+        return optimizer;
+    }
+
+    static TrainingCheckpoint read(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16), crc))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a checkpoint");
+            }
+            int version = in.readInt();
+            if (version != 1 && version != VERSION) {
+                throw new IOException(file + " has unsupported version " + version);
+            }
+            int epoch = in.readInt();
+            float learningRate = in.readFloat();
+            int entityCount = in.readInt();
+            int relationCount = in.readInt();
+            int dimension = in.readInt();
+            if (entityCount < 0 || relationCount < 0 || dimension <= 0 ||
+                    ((long) entityCount + relationCount) * dimension * Float.BYTES > file.length()) {
+                throw new IOException(file + " is truncated");
+            }
+            EmbeddingTable entityVec = new EmbeddingTable(entityCount, dimension);
+            BinaryArrays.readFloats(in, entityVec.values);
+            EmbeddingTable relationVec = new EmbeddingTable(relationCount, dimension);
+            BinaryArrays.readFloats(in, relationVec.values);
+            Optimizer entityOptimizer = null;
+            Optimizer relationOptimizer = null;
+            if (version >= 2) {
+                String optimizerName = in.readUTF();
+                entityOptimizer = readState(in, file, optimizerName, entityCount, dimension);
+                relationOptimizer = readState(in, file, optimizerName, relationCount, dimension);
+            }
+            long expectedCrc = crc.getValue();
+            if (in.readLong() != expectedCrc || in.read() != -1) {
+                throw new IOException(file + " is corrupt");
+            }
+            return new TrainingCheckpoint(epoch, learningRate, entityVec, relationVec, entityOptimizer,
+                    relationOptimizer);
+        }
+    }
+
+    /**
+     * Returns the newest checkpoint in the directory that reads back intact, or null if there is
+     * none.
+     */
+    static TrainingCheckpoint readLatest(File directory) {
+        for (File file : checkpointFiles(directory)) {
+            try {
+                TrainingCheckpoint checkpoint = read(file);
+                Log.info("TrainingCheckpoint", "Resuming from " + file);
+                return checkpoint;
+            } catch (IOException e) {
+                Log.warn("TrainingCheckpoint", "Skipping unreadable checkpoint " + file, e);
+            }
+        }
+        return null;
+    }
+}
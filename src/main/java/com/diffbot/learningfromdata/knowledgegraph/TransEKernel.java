@@ -0,0 +1,173 @@
+package com.diffbot.ml;
+
+/**
+ * L1 distance kernels of the TransE family over the contiguous rows of an EmbeddingTable.
+ *
+ * The loops accumulate in float over four independent partial sums, so they neither convert every
+ * element to double nor wait on one long chain of additions, and the JIT can unroll and vectorize
+ * them. The batched kernels score one query against many rows, eg every candidate tail of a head
+ * and relation, computing the query once.
+ */
+final class TransEKernel {
+    private TransEKernel() {}
+
+    /**
+     * Returns the L1 norm of a - b - c over dimension elements.
+     */
+    static float l1(float[] a, int aOffset, float[] b, int bOffset, float[] c, int cOffset, int dimension) {
+        float sum0 = 0;
+        float sum1 = 0;
+        float sum2 = 0;
+        float sum3 = 0;
+        int j = 0;
+        for (; j + 3 < dimension; j += 4) {
+            sum0 += Math.abs(a[aOffset + j] - b[bOffset + j] - c[cOffset + j]);
+            sum1 += Math.abs(a[aOffset + j + 1] - b[bOffset + j + 1] - c[cOffset + j + 1]);
+            sum2 += Math.abs(a[aOffset + j + 2] - b[bOffset + j + 2] - c[cOffset + j + 2]);
+            sum3 += Math.abs(a[aOffset + j + 3] - b[bOffset + j + 3] - c[cOffset + j + 3]);
+        }
+        for (; j < dimension; j++) {
+            sum0 += Math.abs(a[aOffset + j] - b[bOffset + j] - c[cOffset + j]);
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    /**
+     * Returns the L1 norm of the relation minus the relations of the path, ie how far the path is
+     * from composing to the relation.
+     */
+    static float pathL1(EmbeddingTable relations, int relationId, int[] path) {
+        float[] values = relations.values;
+        int dimension = relations.dimension;
+        int offset = relations.offset(relationId);
+        float sum0 = 0;
+        float sum1 = 0;
+        int k = 0;
+        for (; k + 1 < dimension; k += 2) {
+            float x0 = values[offset + k];
+            float x1 = values[offset + k + 1];
+            for (int pathRelationId : path) {
+                int pathOffset = relations.offset(pathRelationId);
+                x0 -= values[pathOffset + k];
+                x1 -= values[pathOffset + k + 1];
+            }
+            sum0 += Math.abs(x0);
+            sum1 += Math.abs(x1);
+        }
+        for (; k < dimension; k++) {
+            float x = values[offset + k];
+            for (int pathRelationId : path) {
+                x -= values[relations.offset(pathRelationId) + k];
+            }
+            sum0 += Math.abs(x);
+        }
+        return sum0 + sum1;
+    }
+
+    /**
+     * Sets query to head + sign * relation, the point a tail of the head should be translated to.
+     */
+    static void query(EmbeddingTable entities, int headId, EmbeddingTable relations, int relationId,
+            float sign, float[] query) {
+        int headOffset = entities.offset(headId);
+        int relationOffset = relations.offset(relationId);
+        for (int j = 0; j < query.length; j++) {
+            query[j] = entities.values[headOffset + j] + sign * relations.values[relationOffset + j];
+        }
+    }
+
+    /**
+     * Adds the L1 distance between the query and row rowIds[i] of the table to distances[i], for
+     * the first count rows.
+     */
+    static void addL1Distances(float[] query, EmbeddingTable table, int[] rowIds, int count,
+            float[] distances) {
+        float[] values = table.values;
+        int dimension = table.dimension;
+        for (int i = 0; i < count; i++) {
+            int offset = table.offset(rowIds[i]);
+            float sum0 = 0;
+            float sum1 = 0;
+            float sum2 = 0;
+            float sum3 = 0;
+            int j = 0;
+            for (; j + 3 < dimension; j += 4) {
+                sum0 += Math.abs(values[offset + j] - query[j]);
+                sum1 += Math.abs(values[offset + j + 1] - query[j + 1]);
+                sum2 += Math.abs(values[offset + j + 2] - query[j + 2]);
+                sum3 += Math.abs(values[offset + j + 3] - query[j + 3]);
+            }
+            for (; j < dimension; j++) {
+                sum0 += Math.abs(values[offset + j] - query[j]);
+            }
+            distances[i] += (sum0 + sum1) + (sum2 + sum3);
+        }
+    }
+
+    /**
+     * Like addL1Distances for each of the first queryCount queries into distances[q], but scores
+     * the queries in pairs, so each element of a row is loaded once for two queries rather than
+     * once per query, and the row is read while it is in cache for all of them. The sums are the
+     * same as one query at a time.
+     */
+    static void addL1Distances(float[][] queries, int queryCount, EmbeddingTable table, int[] rowIds,
+            int count, float[][] distances) {
+        float[] values = table.values;
+        int dimension = table.dimension;
+        for (int i = 0; i < count; i++) {
+            int offset = table.offset(rowIds[i]);
+            int q = 0;
+            for (; q + 1 < queryCount; q += 2) {
+                float[] a = queries[q];
+                float[] b = queries[q + 1];
+                float a0 = 0;
+                float a1 = 0;
+                float a2 = 0;
+                float a3 = 0;
+                float b0 = 0;
+                float b1 = 0;
+                float b2 = 0;
+                float b3 = 0;
+                int j = 0;
+                for (; j + 3 < dimension; j += 4) {
+                    float v0 = values[offset + j];
+                    float v1 = values[offset + j + 1];
+                    float v2 = values[offset + j + 2];
+                    float v3 = values[offset + j + 3];
+                    a0 += Math.abs(v0 - a[j]);
+                    a1 += Math.abs(v1 - a[j + 1]);
+                    a2 += Math.abs(v2 - a[j + 2]);
+                    a3 += Math.abs(v3 - a[j + 3]);
+                    b0 += Math.abs(v0 - b[j]);
+                    b1 += Math.abs(v1 - b[j + 1]);
+                    b2 += Math.abs(v2 - b[j + 2]);
+                    b3 += Math.abs(v3 - b[j + 3]);
+                }
+                for (; j < dimension; j++) {
+                    a0 += Math.abs(values[offset + j] - a[j]);
+                    b0 += Math.abs(values[offset + j] - b[j]);
+                }
+                distances[q][i] += (a0 + a1) + (a2 + a3);
+                distances[q + 1][i] += (b0 + b1) + (b2 + b3);
+            }
+            if (q < queryCount) {
+                float[] a = queries[q];
+                float a0 = 0;
+                float a1 = 0;
+                float a2 = 0;
+                float a3 = 0;
+                int j = 0;
+                for (; j + 3 < dimension; j += 4) {
+                    a0 += Math.abs(values[offset + j] - a[j]);
+                    a1 += Math.abs(values[offset + j + 1] - a[j + 1]);
+                    a2 += Math.abs(values[offset + j + 2] - a[j + 2]);
+                    a3 += Math.abs(values[offset + j + 3] - a[j + 3]);
+                }
+                for (; j < dimension; j++) {
+                    a0 += Math.abs(values[offset + j] - a[j]);
+                }
+                distances[q][i] += (a0 + a1) + (a2 + a3);
+            }
+        }
+    }
+}
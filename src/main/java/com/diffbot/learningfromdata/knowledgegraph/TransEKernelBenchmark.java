@@ -0,0 +1,97 @@
+package com.diffbot.ml;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the scalar double loop PTransEAddTrain.evalTriple and PTransEAddTest.scoreTriple used to
+ * compute TransE distances with the TransEKernel kernels, scoring triples with random entities,
+ * and a head and relation against every entity as PTransEAddTest.inferTail does, at N=50/100/200.
+ *
+ * Usage: TransEKernelBenchmark [entities]
+ */
+public class TransEKernelBenchmark {
+    private static final int RELATION_COUNT = 16;
+    private static final int RUNS = 5;
+    private static final int MIN_TRIPLES_PER_RUN = 2_000_000;
+    private static final int[] DIMENSIONS = {50, 100, 200};
+
+    private static EmbeddingTable randomTable(int rowCount, int dimension, Random random) {
+        EmbeddingTable table = new EmbeddingTable(rowCount, dimension);
+        for (int i = 0; i < table.values.length; i++) {
+            table.values[i] = (float) random.nextGaussian();
+        }
+        return table;
+    }
+
+    /**
+     * The distance as computed before TransEKernel.
+     */
+    private static double scalarL1(EmbeddingTable entities, EmbeddingTable relations, int e1, int e2,
+            int rel) {
+        double error = 0;
+        for (int j = 0; j < entities.dimension; j++) {
+            double err = entities.values[entities.offset(e2) + j] - entities.values[entities.offset(e1) + j] -
+                    relations.values[relations.offset(rel) + j];
+            error += Math.abs(err);
+        }
+        return error;
+    }
+
+    public static void main(String[] args) {
+        int entityCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        Random random = new Random(42);
+        int[] heads = new int[entityCount];
+        int[] tails = new int[entityCount];
+        int[] relationIds = new int[entityCount];
+        int[] allEntities = new int[entityCount];
+        for (int i = 0; i < entityCount; i++) {
+            heads[i] = random.nextInt(entityCount);
+            tails[i] = random.nextInt(entityCount);
+            relationIds[i] = random.nextInt(RELATION_COUNT);
+            allEntities[i] = i;
+        }
+
+        // Repeat small runs so that each run is long enough to time
+        int passes = Math.max(1, MIN_TRIPLES_PER_RUN / entityCount);
+
+        System.out.println("N\tscalarNs\tkernelNs\tbatchedNs (per triple)");
+        for (int dimension : DIMENSIONS) {
+            EmbeddingTable entities = randomTable(entityCount, dimension, random);
+            EmbeddingTable relations = randomTable(RELATION_COUNT, dimension, random);
+            double scalarNs = Benchmarks.time(() -> {
+                double sum = 0;
+                for (int pass = 0; pass < passes; pass++) {
+                    for (int i = 0; i < entityCount; i++) {
+                        sum += scalarL1(entities, relations, heads[i], tails[i], relationIds[i]);
+                    }
+                }
+                return sum;
+            }, RUNS, passes * entityCount);
+            double kernelNs = Benchmarks.time(() -> {
+                double sum = 0;
+                for (int pass = 0; pass < passes; pass++) {
+                    for (int i = 0; i < entityCount; i++) {
+                        sum += TransEKernel.l1(entities.values, entities.offset(tails[i]), entities.values,
+                                entities.offset(heads[i]), relations.values,
+                                relations.offset(relationIds[i]), dimension);
+                    }
+                }
+                return sum;
+            }, RUNS, passes * entityCount);
+            float[] query = new float[dimension];
+            float[] distances = new float[entityCount];
+            double batchedNs = Benchmarks.time(() -> {
+                for (int pass = 0; pass < passes; pass++) {
+                    TransEKernel.query(entities, heads[pass % entityCount], relations,
+                            relationIds[pass % entityCount], 1, query);
+                    Arrays.fill(distances, 0);
+                    TransEKernel.addL1Distances(query, entities, allEntities, entityCount, distances);
+                }
+                return distances[entityCount - 1];
+            }, RUNS, passes * entityCount);
+            System.out.println(String.format("%d\t%.1f\t%.1f\t%.1f", dimension, scalarNs, kernelNs,
+                    batchedNs));
+        }
+    }
+}